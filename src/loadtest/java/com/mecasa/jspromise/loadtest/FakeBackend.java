@@ -0,0 +1,81 @@
+package com.mecasa.jspromise.loadtest;
+
+import com.mecasa.jspromise.BlockingCall;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in for a remote service, blocking the calling thread for a random time and failing at a
+ * given rate.
+ */
+final class FakeBackend {
+    enum Distribution {
+        FIXED, UNIFORM, EXPONENTIAL
+    }
+
+    private final long _meanDelayNanos;
+    private final Distribution _distribution;
+    private final double _failureRate;
+
+    private final ThreadLocal<Random> _random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /**
+     * @param meanDelay    the mean time a request blocks.
+     * @param unit         the {@link TimeUnit} of meanDelay.
+     * @param distribution the distribution of the delays around the mean.
+     * @param failureRate  the share of failing requests, between 0 and 1.
+     */
+    FakeBackend(long meanDelay, TimeUnit unit, Distribution distribution, double failureRate) {
+        _meanDelayNanos = unit.toNanos(meanDelay);
+        _distribution = distribution;
+        _failureRate = failureRate;
+    }
+
+    /**
+     * performs a request on the calling thread.
+     */
+    Object request(Object input) throws IOException, InterruptedException {
+        long delay = nextDelay();
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        if (_failureRate > 0 && _random.get().nextDouble() < _failureRate) {
+            throw new IOException("backend failure");
+        }
+        return input;
+    }
+
+    private long nextDelay() {
+        switch (_distribution) {
+            case UNIFORM:
+                return (long) (_random.get().nextDouble() * 2 * _meanDelayNanos);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - _random.get().nextDouble()) * _meanDelayNanos);
+            default:
+                return _meanDelayNanos;
+        }
+    }
+
+    /**
+     * a Call performing a single request, used as prototype for all stages of the pipeline.
+     */
+    static final class RequestCall extends BlockingCall<Object> {
+        private final FakeBackend _backend;
+
+        RequestCall(FakeBackend backend) {
+            _backend = backend;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            resolve(_backend.request(params.length > 0 ? params[0] : null));
+        }
+    }
+}
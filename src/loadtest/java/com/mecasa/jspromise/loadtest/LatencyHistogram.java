@@ -0,0 +1,78 @@
+package com.mecasa.jspromise.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with a relative error below 2%, recorded without locks.
+ *
+ * Values are counted in buckets of powers of two, each split into 64 linear sub-buckets, so a value is off by at most
+ * 1/64 of its power of two. The memory used is fixed no matter how many values are recorded.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray _counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS
+            + HALF_SUB_BUCKETS);
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(index(value));
+        _total.incrementAndGet();
+
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    long getTotalCount() {
+        return _total.get();
+    }
+
+    long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * @param percentile the percentile, e.g. 99.9.
+     * @return the highest value of the bucket containing the percentile, at most the recorded maximum.
+     */
+    long getValueAtPercentile(double percentile) {
+        long total = _total.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long count = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            count += _counts.get(i);
+            if (count >= rank) {
+                return Math.min(highestValue(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    static int index(long value) {
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1);
+        // below SUB_BUCKETS for the first bucket, in the upper half of the sub-buckets for all others
+        int subBucket = (int) (value >>> bucket);
+        return bucket * HALF_SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int bucket = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - bucket * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
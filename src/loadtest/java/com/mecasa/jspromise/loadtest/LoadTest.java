@@ -0,0 +1,198 @@
+package com.mecasa.jspromise.loadtest;
+
+import com.mecasa.jspromise.Call;
+import com.mecasa.jspromise.Promise;
+import com.mecasa.jspromise.PromiseTemplate;
+import com.mecasa.jspromise.Result;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a Promise pipeline against a {@link FakeBackend} at a fixed request rate and reports the throughput and
+ * the latency percentiles.
+ *
+ * The load is open-loop: requests are started at their scheduled time no matter how many are still in flight, and
+ * the latency is measured from the scheduled time instead of the actual start. A stalled pipeline therefore shows up
+ * in the latencies of all requests delayed by it, not only in the one that stalled (coordinated omission).
+ *
+ * Run it with <code>gradle loadTest -PloadTestArgs="--rate 2000 --stages 3 --fanout 4"</code>, see
+ * {@link #usage()} for all options.
+ */
+public final class LoadTest {
+    private int _rate = 1000;
+    private int _durationSeconds = 30;
+    private int _warmupSeconds = 5;
+    private int _stages = 3;
+    private int _fanOut = 4;
+    private long _delayMicros = 1000;
+    private FakeBackend.Distribution _distribution = FakeBackend.Distribution.EXPONENTIAL;
+    private double _failureRate = 0.01;
+    private int _retries = 2;
+    private int _threads = 64;
+
+    private final LatencyHistogram _latencies = new LatencyHistogram();
+    private final AtomicLong _resolved = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicInteger _inFlight = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+        try {
+            loadTest.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(usage());
+            System.exit(1);
+        }
+        loadTest.run();
+        System.exit(0);
+    }
+
+    static String usage() {
+        return "options:\n"
+                + "  --rate <requests per second>       default 1000\n"
+                + "  --duration <seconds>               default 30, excluding the warmup\n"
+                + "  --warmup <seconds>                 default 5, not measured\n"
+                + "  --stages <count>                   default 3\n"
+                + "  --fanout <calls per stage>         default 4\n"
+                + "  --delay <mean microseconds>        default 1000, time a backend call blocks\n"
+                + "  --distribution <name>              default exponential, or fixed, uniform\n"
+                + "  --failure-rate <0..1>              default 0.01, per backend call\n"
+                + "  --retries <count>                  default 2, per backend call\n"
+                + "  --threads <count>                  default 64, threads performing the calls";
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + args[i]);
+            }
+            String name = args[i];
+            String value = args[i + 1];
+            try {
+                if ("--rate".equals(name)) {
+                    _rate = Integer.parseInt(value);
+                } else if ("--duration".equals(name)) {
+                    _durationSeconds = Integer.parseInt(value);
+                } else if ("--warmup".equals(name)) {
+                    _warmupSeconds = Integer.parseInt(value);
+                } else if ("--stages".equals(name)) {
+                    _stages = Integer.parseInt(value);
+                } else if ("--fanout".equals(name)) {
+                    _fanOut = Integer.parseInt(value);
+                } else if ("--delay".equals(name)) {
+                    _delayMicros = Long.parseLong(value);
+                } else if ("--distribution".equals(name)) {
+                    _distribution = FakeBackend.Distribution.valueOf(value.toUpperCase());
+                } else if ("--failure-rate".equals(name)) {
+                    _failureRate = Double.parseDouble(value);
+                } else if ("--retries".equals(name)) {
+                    _retries = Integer.parseInt(value);
+                } else if ("--threads".equals(name)) {
+                    _threads = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid value of " + name + ": " + value);
+            }
+        }
+        if (_rate <= 0 || _durationSeconds <= 0 || _warmupSeconds < 0 || _stages <= 0 || _fanOut <= 0
+                || _delayMicros < 0 || _failureRate < 0 || _failureRate > 1 || _retries < 0 || _threads <= 0) {
+            throw new IllegalArgumentException("invalid load test options");
+        }
+    }
+
+    private PromiseTemplate createPipeline(FakeBackend backend) {
+        PromiseTemplate template = null;
+        for (int stage = 0; stage < _stages; stage++) {
+            Call[] calls = new Call[_fanOut];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = new FakeBackend.RequestCall(backend).retries(_retries);
+            }
+            template = template == null ? PromiseTemplate.when(calls) : template.then(calls);
+        }
+        return template;
+    }
+
+    private void run() throws InterruptedException {
+        FakeBackend backend = new FakeBackend(_delayMicros, TimeUnit.MICROSECONDS, _distribution, _failureRate);
+        PromiseTemplate pipeline = createPipeline(backend);
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+
+        System.out.printf("%d requests/s for %ds after %ds warmup: %d stages x %d calls, %s delay of %dus, "
+                        + "failure rate %.3f, %d retries, %d threads%n", _rate, _durationSeconds, _warmupSeconds,
+                _stages, _fanOut, _distribution.name().toLowerCase(), _delayMicros, _failureRate, _retries,
+                _threads);
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / _rate;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(_warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(_durationSeconds);
+
+        long maxInFlight = 0;
+        for (long request = 0; ; request++) {
+            // the scheduled start, independent of how long previous requests took
+            final long scheduled = start + request * intervalNanos;
+            if (scheduled - end >= 0) {
+                break;
+            }
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            startRequest(pipeline, executor, request, scheduled, scheduled - measureFrom >= 0);
+            maxInFlight = Math.max(maxInFlight, _inFlight.get());
+        }
+        long generated = System.nanoTime();
+
+        // wait for the requests in flight
+        while (_inFlight.get() > 0 && System.nanoTime() - generated < TimeUnit.SECONDS.toNanos(60)) {
+            Thread.sleep(10);
+        }
+        executor.shutdownNow();
+
+        report(end - measureFrom, maxInFlight, System.nanoTime() - generated);
+    }
+
+    private void startRequest(PromiseTemplate pipeline, ExecutorService executor, long request,
+                              final long scheduled, final boolean measured) {
+        _inFlight.incrementAndGet();
+        pipeline.create(request).setExecutor(executor).resolve(new Result<Object[]>() {
+            public void accept(Object[] values) {
+                complete(scheduled, measured, _resolved);
+            }
+        }).reject(new Result<Throwable>() {
+            public void accept(Throwable reason) {
+                complete(scheduled, measured, _rejected);
+            }
+        }).start();
+    }
+
+    private void complete(long scheduled, boolean measured, AtomicLong outcomes) {
+        if (measured) {
+            _latencies.record(System.nanoTime() - scheduled);
+            outcomes.incrementAndGet();
+        }
+        _inFlight.decrementAndGet();
+    }
+
+    private void report(long measuredNanos, long maxInFlight, long drainNanos) {
+        double seconds = measuredNanos / 1e9;
+        long completed = _resolved.get() + _rejected.get();
+        System.out.printf("completed    %d (%d resolved, %d rejected), %d still in flight%n", completed,
+                _resolved.get(), _rejected.get(), _inFlight.get());
+        System.out.printf("throughput   %.1f requests/s (target %d)%n", completed / seconds, _rate);
+        System.out.printf("in flight    %d at most, drained in %.1fms%n", maxInFlight, drainNanos / 1e6);
+        System.out.printf("latency p50  %.3fms%n", _latencies.getValueAtPercentile(50) / 1e6);
+        System.out.printf("latency p99  %.3fms%n", _latencies.getValueAtPercentile(99) / 1e6);
+        System.out.printf("latency p999 %.3fms%n", _latencies.getValueAtPercentile(99.9) / 1e6);
+        System.out.printf("latency max  %.3fms%n", _latencies.getMax() / 1e6);
+    }
+}
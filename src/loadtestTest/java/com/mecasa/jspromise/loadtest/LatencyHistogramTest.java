@@ -0,0 +1,72 @@
+package com.mecasa.jspromise.loadtest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private static final double MAX_ERROR = 0.02;
+
+    @Test
+    public void testIndexRoundTrip() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = i < 1000 ? i : random.nextLong() >>> (1 + random.nextInt(63));
+            assertRoundTrip(value);
+        }
+        for (int shift = 0; shift < 63; shift++) {
+            assertRoundTrip((1L << shift) - 1);
+            assertRoundTrip(1L << shift);
+        }
+        assertRoundTrip(Long.MAX_VALUE);
+    }
+
+    private static void assertRoundTrip(long value) {
+        int index = LatencyHistogram.index(value);
+        long highest = LatencyHistogram.highestValue(index);
+        assertTrue("highest value of " + value, highest >= value);
+        assertEquals(index, LatencyHistogram.index(highest));
+        // the next bucket starts right after the highest value
+        if (highest < Long.MAX_VALUE) {
+            assertEquals(index + 1, LatencyHistogram.index(highest + 1));
+        }
+        assertTrue("error of " + value, highest - value <= value * MAX_ERROR);
+    }
+
+    @Test
+    public void testPercentileError() throws Exception {
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            // between 100us and 1s, spread over several powers of two
+            values[i] = (long) (100000 * Math.pow(10000, random.nextDouble()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getTotalCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9, 99.99}) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + "th percentile " + actual + " instead of " + expected,
+                    actual >= expected && actual - expected <= expected * MAX_ERROR);
+        }
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        histogram.record(-1);
+        assertEquals(1, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
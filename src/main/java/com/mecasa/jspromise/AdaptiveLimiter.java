@@ -0,0 +1,126 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link Bulkhead} adjusting its concurrency limit to the observed latency of its Calls (AIMD).
+ *
+ * The limiter keeps track of the lowest latency seen recently. As long as the Calls complete within a tolerated
+ * multiple of it, the limit is increased by one whenever it was actually used. A slower or failed Call decreases
+ * the limit by the backoff ratio, at most once for all Calls started before the last decrease. That way the number
+ * of Calls in flight follows the capacity of the backend instead of queueing up in it.
+ */
+public class AdaptiveLimiter extends Bulkhead {
+    // number of samples after which the lowest latency is measured again
+    private static final int MIN_LATENCY_SAMPLES = 1000;
+
+    private final int _minLimit;
+    private final int _maxLimit;
+    private double _latencyTolerance = 2.0;
+    private double _backoffRatio = 0.9;
+
+    private long _minLatency = Long.MAX_VALUE;
+    private long _nextMinLatency = Long.MAX_VALUE;
+    private int _samples;
+    private long _lastDecrease;
+
+    /**
+     * Creates a limiter performing its BlockingCalls on the Executor of their Promise.
+     *
+     * @param name           the name of the limiter.
+     * @param initialLimit   the number of Calls performed at the same time initially.
+     * @param minLimit       the lowest limit.
+     * @param maxLimit       the highest limit.
+     * @param maxQueuedCalls the number of Calls waiting to be performed.
+     */
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueuedCalls) {
+        this(name, initialLimit, minLimit, maxLimit, maxQueuedCalls, null);
+    }
+
+    /**
+     * @param name           the name of the limiter.
+     * @param initialLimit   the number of Calls performed at the same time initially.
+     * @param minLimit       the lowest limit.
+     * @param maxLimit       the highest limit.
+     * @param maxQueuedCalls the number of Calls waiting to be performed.
+     * @param executor       the {@link Executor} performing the BlockingCalls, or null to use the one of
+     *                       their Promise.
+     */
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, int maxQueuedCalls,
+                           Executor executor) {
+        super(name, initialLimit, maxQueuedCalls, executor);
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("invalid limiter limits");
+        }
+        _minLimit = minLimit;
+        _maxLimit = maxLimit;
+        _lastDecrease = Promise.getScheduler().nanoTime();
+    }
+
+    /**
+     * @param latencyTolerance the multiple of the lowest latency still considered normal. Defaults to 2.
+     * @return the AdaptiveLimiter
+     */
+    public AdaptiveLimiter setLatencyTolerance(double latencyTolerance) {
+        if (latencyTolerance < 1) {
+            throw new IllegalArgumentException("latency tolerance must be at least 1");
+        }
+        _latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * @param backoffRatio the factor applied to the limit on congestion. Defaults to 0.9.
+     * @return the AdaptiveLimiter
+     */
+    public AdaptiveLimiter setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoff ratio must be between 0 and 1");
+        }
+        _backoffRatio = backoffRatio;
+        return this;
+    }
+
+    @Override
+    protected synchronized void onCompleted(long latencyNanos, boolean success) {
+        // read, compute and store the limit under the same lock, so concurrent decreases aren't lost. The
+        // Bulkhead starts waiting Calls after this returns.
+        int limit = getMaxConcurrentCalls();
+        int newLimit = computeLimit(limit, latencyNanos, success);
+        if (newLimit != limit) {
+            updateMaxConcurrentCalls(newLimit);
+        }
+    }
+
+    private int computeLimit(int limit, long latencyNanos, boolean success) {
+        long now = Promise.getScheduler().nanoTime();
+
+        if (success) {
+            updateMinLatency(latencyNanos);
+        }
+
+        if (!success || latencyNanos > _minLatency * _latencyTolerance) {
+            // only react once to all the Calls which were already running at the last decrease
+            if (now - latencyNanos - _lastDecrease >= 0) {
+                _lastDecrease = now;
+                return Math.max(_minLimit, (int) (limit * _backoffRatio));
+            }
+        } else if (limit < _maxLimit && getActiveCount() * 2 >= limit) {
+            return limit + 1;
+        }
+        return limit;
+    }
+
+    private void updateMinLatency(long latencyNanos) {
+        _nextMinLatency = Math.min(_nextMinLatency, latencyNanos);
+        if (latencyNanos < _minLatency) {
+            _minLatency = latencyNanos;
+        }
+        // the lowest latency may rise over time, e.g. because of a growing data set
+        if (++_samples >= MIN_LATENCY_SAMPLES) {
+            _minLatency = _nextMinLatency;
+            _nextMinLatency = Long.MAX_VALUE;
+            _samples = 0;
+        }
+    }
+}
@@ -11,13 +11,7 @@ package com.mecasa.jspromise;
 public abstract class AsyncCall<T> extends Call<T> {
 
     @Override
-    final protected void triggerCall(Object... params) {
-        super.triggerCall(params);
-
-        try {
-            call(params);
-        } catch (Throwable e) {
-            reject(e);
-        }
+    final void dispatch(Object... params) {
+        invoke(params);
     }
 }
@@ -0,0 +1,67 @@
+package com.mecasa.jspromise;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replaces a file with a temporary one written and synced before, used by {@link FileCheckpointStore} and
+ * {@link CallJournal}.
+ *
+ * Renaming replaces the file atomically on most platforms. Where it doesn't, the file is renamed to a backup
+ * first, so a crash in between still leaves the previous version to read.
+ */
+final class AtomicFile {
+    private static final String BACKUP_SUFFIX = ".bak";
+
+    private AtomicFile() {
+    }
+
+    /**
+     * @param temp   the completely written and synced temporary file, in the same directory as the target.
+     * @param target the file to replace, which may not exist yet.
+     * @throws IOException if the file can't be replaced.
+     */
+    static void replace(File temp, File target) throws IOException {
+        if (temp.renameTo(target)) {
+            return;
+        }
+
+        // some platforms don't replace existing files
+        File backup = getBackup(target);
+        if (backup.exists() && !backup.delete()) {
+            throw new IOException("can't remove backup " + backup);
+        }
+        if ((target.exists() && !target.renameTo(backup)) || !temp.renameTo(target)) {
+            throw new IOException("can't replace " + target);
+        }
+        backup.delete();
+    }
+
+    /**
+     * @return the file to read, which is the backup if the process died while replacing the target.
+     */
+    static File getReadable(File target) {
+        if (!target.exists()) {
+            File backup = getBackup(target);
+            if (backup.exists()) {
+                return backup;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * deletes the file and a backup left behind.
+     *
+     * @return false if a file exists but can't be deleted.
+     */
+    static boolean delete(File target) {
+        File backup = getBackup(target);
+        boolean deleted = !backup.exists() || backup.delete();
+        return (!target.exists() || target.delete()) && deleted;
+    }
+
+    private static File getBackup(File target) {
+        return new File(target.getPath() + BACKUP_SUFFIX);
+    }
+}
@@ -0,0 +1,46 @@
+package com.mecasa.jspromise;
+
+/**
+ * A BatchingCall doesn't perform any work itself, but adds its key to the current batch of a shared
+ * {@link CallBatcher}. Once the batch is dispatched, the Call is resolved with the value the batch delivered for
+ * its key.
+ *
+ * <pre>
+ *     Promise.when(new BatchingCall&lt;String, User&gt;(userBatcher, "peter"))
+ *         .resolve(resultHandler);
+ * </pre>
+ *
+ * To compute the key from the values of the previous stage, override {@link #getKey(Object...)}.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the resolved values
+ */
+public class BatchingCall<K, V> extends Call<V> {
+    private final CallBatcher<K, V> _batcher;
+    private final K _key;
+
+    /**
+     * @param batcher the {@link CallBatcher} collecting the keys of all Calls.
+     * @param key     the key to request.
+     */
+    public BatchingCall(CallBatcher<K, V> batcher, K key) {
+        if (batcher == null) {
+            throw new IllegalArgumentException("batcher must not be null");
+        }
+        _batcher = batcher;
+        _key = key;
+    }
+
+    /**
+     * @param params the parameters this Call is triggered with.
+     * @return the key to request. Returns the key passed to the constructor by default.
+     */
+    protected K getKey(Object... params) {
+        return _key;
+    }
+
+    @Override
+    final protected void call(Object... params) throws Throwable {
+        _batcher.add(getKey(params), this);
+    }
+}
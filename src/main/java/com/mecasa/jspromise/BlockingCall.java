@@ -1,5 +1,10 @@
 package com.mecasa.jspromise;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
 /**
  * Created by peter on 19/02/16.
  *
@@ -8,20 +13,77 @@ package com.mecasa.jspromise;
  */
 public abstract class BlockingCall<T> extends Call<T> {
     @Override
-    final protected void triggerCall(final Object... params) {
-        super.triggerCall(params);
-
-        getPromise().getExecutor().execute(new Runnable(){
-            public void run() {
-                try {
-                    call(params);
-                } catch (Throwable e) {
-                    reject(e);
+    final void dispatch(Object... params) {
+        Bulkhead.Permit permit = getPermit();
+        Executor executor = permit != null ? permit.bulkhead.getExecutor() : null;
+        if (executor == null) {
+            executor = getPromise().getExecutor();
+        }
+
+        final Promise promise = getPromise();
+        final Task task = new Task(promise, permit, params);
+        promise.taskDispatched();
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            promise.taskFinished(task);
+            reject(e);
+        }
+    }
+
+
+    /**
+     * performs the Call on a thread of the Executor, carrying its priority and deadline for a
+     * {@link PriorityExecutor}.
+     */
+    private final class Task implements Runnable, PriorityExecutor.Prioritized {
+        private final Promise _promise;
+        private final Bulkhead.Permit _permit;
+        private final Object[] _params;
+
+        Task(Promise promise, Bulkhead.Permit permit, Object[] params) {
+            _promise = promise;
+            _permit = permit;
+            _params = params;
+        }
+
+        public void run() {
+            if (_permit != null) {
+                _permit.start();
+            }
+            try {
+                if (!_promise.taskStarted(this)) {
+                    // cancelled while waiting for a thread
+                    setRejected(new CancellationException("promise cancelled"));
+                    return;
+                }
+                if (isExpired()) {
+                    // waited too long for a thread, don't waste it
+                    setRejected(new TimeoutException("deadline of call exceeded"));
+                    return;
+                }
+                invoke(_params);
+            } finally {
+                // the thread is free again, even if the call resolves later on
+                if (_permit != null) {
+                    _permit.release(true);
                 }
+                _promise.taskFinished(this);
             }
-        });
-    }
+        }
+
+        public int getPriority() {
+            return BlockingCall.this.getPriority();
+        }
 
+        public boolean hasDeadline() {
+            return BlockingCall.this.hasDeadline();
+        }
+
+        public long getDeadline() {
+            return BlockingCall.this.getDeadline();
+        }
+    }
 
     /**
      * wraps a blocking runnable in a AsyncCall which will always be resolved without a parameter once
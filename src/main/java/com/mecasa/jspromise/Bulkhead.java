@@ -0,0 +1,233 @@
+package com.mecasa.jspromise;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrently performed {@link Call}s of one kind, see {@link Call#bulkhead(Bulkhead)}.
+ *
+ * Calls exceeding the limit wait in a bounded queue and are started as soon as running Calls complete. If the
+ * queue is full as well, the Call is rejected with a {@link RejectedExecutionException}.
+ * A Bulkhead may have its own {@link Executor} for its {@link BlockingCall}s, so a slow dependency can't
+ * exhaust the Executor shared by all other Calls.
+ *
+ * Bulkheads can be registered by name, to be referenced with {@link Call#bulkhead(String)}.
+ */
+public class Bulkhead {
+    private static final ConcurrentMap<String, Bulkhead> sBulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    private final String _name;
+    private volatile int _maxConcurrentCalls;
+    private final int _maxQueuedCalls;
+    private final Executor _executor;
+
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _queued = new AtomicInteger();
+    private final Queue<Waiting> _waiting = new ConcurrentLinkedQueue<Waiting>();
+    // the number of drain() calls not handled yet by the draining thread
+    private final AtomicInteger _drainRequests = new AtomicInteger();
+
+    /**
+     * Creates a Bulkhead performing its BlockingCalls on the Executor of their Promise.
+     *
+     * @param name               the name of the Bulkhead.
+     * @param maxConcurrentCalls the number of Calls performed at the same time.
+     * @param maxQueuedCalls     the number of Calls waiting to be performed.
+     */
+    public Bulkhead(String name, int maxConcurrentCalls, int maxQueuedCalls) {
+        this(name, maxConcurrentCalls, maxQueuedCalls, null);
+    }
+
+    /**
+     * @param name               the name of the Bulkhead.
+     * @param maxConcurrentCalls the number of Calls performed at the same time.
+     * @param maxQueuedCalls     the number of Calls waiting to be performed.
+     * @param executor           the {@link Executor} performing the BlockingCalls, or null to use the one of
+     *                           their Promise.
+     */
+    public Bulkhead(String name, int maxConcurrentCalls, int maxQueuedCalls, Executor executor) {
+        if (maxConcurrentCalls <= 0 || maxQueuedCalls < 0) {
+            throw new IllegalArgumentException("invalid bulkhead limits");
+        }
+        _name = name;
+        _maxConcurrentCalls = maxConcurrentCalls;
+        _maxQueuedCalls = maxQueuedCalls;
+        _executor = executor;
+    }
+
+    /**
+     * Registers a Bulkhead by its name, replacing any Bulkhead registered with the same name.
+     *
+     * @param bulkhead the Bulkhead to register.
+     * @return the registered Bulkhead
+     */
+    public static Bulkhead register(Bulkhead bulkhead) {
+        sBulkheads.put(bulkhead.getName(), bulkhead);
+        return bulkhead;
+    }
+
+    /**
+     * @param name the name of the Bulkhead.
+     * @return the registered Bulkhead, or null if there is none with that name.
+     */
+    public static Bulkhead get(String name) {
+        return sBulkheads.get(name);
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return _maxConcurrentCalls;
+    }
+
+    /**
+     * Changes the number of Calls performed at the same time. Running Calls are not affected by a lower limit.
+     *
+     * @param maxConcurrentCalls the new limit.
+     */
+    protected void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        updateMaxConcurrentCalls(maxConcurrentCalls);
+        drain();
+    }
+
+    /**
+     * stores a new limit without starting waiting Calls, so it can be done while holding a lock. The queue is
+     * drained by the caller afterwards, or when the current Call attempt completes.
+     */
+    void updateMaxConcurrentCalls(int maxConcurrentCalls) {
+        if (maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("invalid bulkhead limits");
+        }
+        _maxConcurrentCalls = maxConcurrentCalls;
+    }
+
+    /**
+     * Called whenever a Call attempt completed, before the next waiting Call is started.
+     *
+     * @param latencyNanos the time the attempt took, excluding the time it waited in the queue.
+     * @param success      false if the attempt rejected the Call.
+     */
+    protected void onCompleted(long latencyNanos, boolean success) {
+    }
+
+    /**
+     * @return the number of Calls currently performed.
+     */
+    public int getActiveCount() {
+        return _active.get();
+    }
+
+    /**
+     * @return the number of Calls waiting to be performed.
+     */
+    public int getQueuedCount() {
+        return _queued.get();
+    }
+
+    Executor getExecutor() {
+        return _executor;
+    }
+
+    void submit(Call call, Object[] params) {
+        if (tryAcquire()) {
+            call.perform(new Permit(this), params);
+            return;
+        }
+
+        if (_queued.incrementAndGet() > _maxQueuedCalls) {
+            _queued.decrementAndGet();
+            call.reject(new RejectedExecutionException("bulkhead " + _name + " is full"));
+            return;
+        }
+        _waiting.offer(new Waiting(call, params));
+
+        // a Call may have completed while we were queueing
+        drain();
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int active = _active.get();
+            if (active >= _maxConcurrentCalls) {
+                return false;
+            }
+            if (_active.compareAndSet(active, active + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * starts waiting Calls as long as there are free permits. Only one thread drains at a time, the others just make
+     * it look again. A Call completing synchronously therefore doesn't start the next one recursively.
+     */
+    private void drain() {
+        if (_drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            while (!_waiting.isEmpty() && tryAcquire()) {
+                Waiting waiting = _waiting.poll();
+                if (waiting == null) {
+                    _active.decrementAndGet();
+                    break;
+                }
+                _queued.decrementAndGet();
+                waiting.call.perform(new Permit(this), waiting.params);
+            }
+            requests = _drainRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void release(long latencyNanos, boolean success) {
+        onCompleted(latencyNanos, success);
+        _active.decrementAndGet();
+        drain();
+    }
+
+    private static final class Waiting {
+        final Call call;
+        final Object[] params;
+
+        Waiting(Call call, Object[] params) {
+            this.call = call;
+            this.params = params;
+        }
+    }
+
+    /**
+     * The right of a single attempt of a Call to be performed. Released when the attempt resolves or rejects the
+     * Call, or when the {@link BlockingCall#call(Object...)} returns, whatever happens first.
+     */
+    static final class Permit {
+        final Bulkhead bulkhead;
+        private final AtomicBoolean _released = new AtomicBoolean();
+        private volatile long _startedAt = Promise.getScheduler().nanoTime();
+
+        Permit(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        /**
+         * marks the actual start of the attempt, e.g. when a BlockingCall got its thread.
+         */
+        void start() {
+            _startedAt = Promise.getScheduler().nanoTime();
+        }
+
+        void release(boolean success) {
+            if (_released.compareAndSet(false, true)) {
+                bulkhead.release(Promise.getScheduler().nanoTime() - _startedAt, success);
+            }
+        }
+    }
+}
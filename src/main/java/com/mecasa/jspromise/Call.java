@@ -1,30 +1,152 @@
 package com.mecasa.jspromise;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.io.Serializable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by peter on 19/02/16.
  *
  * The base class for all other call types.
  */
-public abstract class Call<T> {
+public abstract class Call<T> implements Cloneable {
     private Promise _promise;
+    private int _stageIndex = -1;
     private int _retryDelay = -1;
     private int _retries = -1;
     private boolean _rejected;
     private boolean _resolved;
     private Object[] _params;
     private T _resolvedValue;
-
-    // used to schedule retried tasks with a delay
-    private static ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor();
+    private CallCache _cache;
+    private Object _cacheKey;
+    private CallCoalescer _coalescer;
+    // the shared execution this Call is performing for other Calls
+    private volatile CallCoalescer.Flight _flight;
+    private CircuitBreaker _circuitBreaker;
+    // the permit of the attempt currently running, granted by the circuit breaker
+    private long _breakerPermit = CircuitBreaker.NO_PERMIT;
+    private Bulkhead _bulkhead;
+    // held by the running attempt if the Call is guarded by a bulkhead
+    private Bulkhead.Permit _permit;
+    private boolean _hasPriority;
+    private int _priority;
+    private boolean _hasDeadline;
+    private long _timeoutNanos;
+    // measured from the start of the current execution
+    private long _deadline;
+    private CallJournal _journal;
+    // the id of the dispatch recorded in the journal, 0 if none is recorded
+    private long _journalId;
     private TimeUnit _retryDelayUnit;
 
-    protected void triggerCall(Object... params){
+    @SuppressWarnings("unchecked")
+    final protected void triggerCall(Object... params) {
         // save for retries
         _params = params;
+
+        // e.g. a delayed retry of a Promise cancelled in the meantime
+        if (isCancelled()) {
+            setRejected(new CancellationException("promise cancelled"));
+            return;
+        }
+
+        if (_cache != null) {
+            _cacheKey = _cache.getKey(params);
+            CallCache.Entry entry = _cacheKey != null ? _cache.get(_cacheKey) : null;
+            if (entry != null) {
+                _cacheKey = null;
+                resolve((T) entry.value);
+                return;
+            }
+        }
+
+        // a retry of a shared execution must not join itself
+        if (_coalescer != null && _flight == null) {
+            Object key = _coalescer.getKey(params);
+            if (key != null) {
+                _flight = _coalescer.join(key, this);
+                if (_flight == null) {
+                    // resolved together with the Call in flight
+                    return;
+                }
+            }
+        }
+
+        // the journal performs the Call once the dispatch is recorded, retries are already recorded
+        if (_journal != null && _journalId == 0) {
+            _journal.dispatch(this, params);
+            return;
+        }
+
+        submit(params);
+    }
+
+    /**
+     * performs the Call, or queues it in its bulkhead.
+     */
+    void submit(Object... params) {
+        if (_bulkhead != null) {
+            // rejected right away instead of occupying the bulkhead, checked again once permitted
+            if (isExpired()) {
+                setRejected(new TimeoutException("deadline of call exceeded"));
+                return;
+            }
+            if (_circuitBreaker != null && _circuitBreaker.isOpen()) {
+                setRejected(_circuitBreaker.createOpenException());
+                return;
+            }
+            _bulkhead.submit(this, params);
+            return;
+        }
+
+        perform(null, params);
+    }
+
+    /**
+     * performs an attempt of this Call once it passed its bulkhead.
+     *
+     * @param permit the bulkhead permit held by the attempt, or null if there is no bulkhead.
+     */
+    void perform(Bulkhead.Permit permit, Object... params) {
+        _permit = permit;
+
+        if (isExpired()) {
+            setRejected(new TimeoutException("deadline of call exceeded"));
+            return;
+        }
+        if (isCancelled()) {
+            setRejected(new CancellationException("promise cancelled"));
+            return;
+        }
+
+        if (_circuitBreaker != null) {
+            long breakerPermit = _circuitBreaker.tryAcquire();
+            if (breakerPermit == CircuitBreaker.NO_PERMIT) {
+                // no retries either, they would be rejected as well
+                setRejected(_circuitBreaker.createOpenException());
+                return;
+            }
+            _breakerPermit = breakerPermit;
+        }
+
+        dispatch(params);
+    }
+
+    /**
+     * performs the actual call. The default implementation calls it directly on the current thread.
+     */
+    void dispatch(Object... params) {
+        invoke(params);
+    }
+
+    final void invoke(Object... params) {
+        try {
+            call(params);
+        } catch (Throwable e) {
+            reject(e);
+        }
     }
 
     protected abstract void call(Object... params) throws Throwable;
@@ -42,6 +164,132 @@ public abstract class Call<T> {
         return this;
     }
 
+    /**
+     * Looks up the resolved value in the given cache before performing the call. On a hit the Call is resolved
+     * immediately, otherwise the resolved value is added to the cache.
+     *
+     * @param cache the {@link CallCache} shared by all Calls performing the same lookup.
+     * @return the Call
+     */
+    public Call cached(CallCache cache) {
+        _cache = cache;
+        return this;
+    }
+
+    /**
+     * Shares the execution with all other Calls of the coalescer triggered with the same key at the same time.
+     *
+     * @param coalescer the {@link CallCoalescer} shared by all Calls performing the same operation.
+     * @return the Call
+     */
+    public Call coalesced(CallCoalescer coalescer) {
+        _coalescer = coalescer;
+        return this;
+    }
+
+    /**
+     * Guards the Call by the given circuit breaker. While the circuit is open, the Call is rejected immediately.
+     *
+     * @param circuitBreaker the {@link CircuitBreaker} shared by all Calls to the same service.
+     * @return the Call
+     */
+    public Call circuitBreaker(CircuitBreaker circuitBreaker) {
+        _circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Limits the concurrency of this kind of Call by the given bulkhead.
+     *
+     * @param bulkhead the {@link Bulkhead} shared by all Calls of the same kind.
+     * @return the Call
+     */
+    public Call bulkhead(Bulkhead bulkhead) {
+        _bulkhead = bulkhead;
+        return this;
+    }
+
+    /**
+     * Limits the concurrency of this kind of Call by a registered bulkhead.
+     *
+     * @param name the name of the {@link Bulkhead}, see {@link Bulkhead#register(Bulkhead)}.
+     * @return the Call
+     */
+    public Call bulkhead(String name) {
+        Bulkhead bulkhead = Bulkhead.get(name);
+        if (bulkhead == null) {
+            throw new IllegalArgumentException("no bulkhead registered with name " + name);
+        }
+        return bulkhead(bulkhead);
+    }
+
+    /**
+     * Specifies the priority of this Call, overriding the one of its Promise. See {@link Promise#setPriority(int)}.
+     *
+     * @param priority the priority, higher values run first.
+     * @return the Call
+     */
+    public Call priority(int priority) {
+        _priority = priority;
+        _hasPriority = true;
+        return this;
+    }
+
+    /**
+     * Specifies a deadline for this Call, overriding the one of its Promise.
+     * See {@link Promise#setDeadline(long, TimeUnit)}.
+     *
+     * @param timeout the time the Call has to be started in, measured from the start of each execution.
+     * @param unit    the {@link TimeUnit} of timeout.
+     * @return the Call
+     */
+    public Call deadline(long timeout, TimeUnit unit) {
+        _timeoutNanos = unit.toNanos(timeout);
+        _hasDeadline = true;
+        return this;
+    }
+
+    /**
+     * Records this Call in a {@link CallJournal} before it is performed, so it is performed again after a crash
+     * until it is resolved or finally rejected.
+     *
+     * @param journal the {@link CallJournal}.
+     * @return the Call
+     */
+    public Call journal(CallJournal journal) {
+        if (!(this instanceof Serializable)) {
+            throw new IllegalArgumentException("journaled calls have to be serializable");
+        }
+        _journal = journal;
+        return this;
+    }
+
+    void setJournalId(long journalId) {
+        _journalId = journalId;
+    }
+
+    int getPriority() {
+        if (_hasPriority || _promise == null) {
+            return _priority;
+        }
+        return _promise.getPriority();
+    }
+
+    boolean hasDeadline() {
+        return _hasDeadline || (_promise != null && _promise.hasDeadline());
+    }
+
+    long getDeadline() {
+        return _hasDeadline ? _deadline : _promise.getDeadline();
+    }
+
+    /**
+     * @return true if the deadline of this Call passed.
+     */
+    boolean isExpired() {
+        return hasDeadline() && Promise.getScheduler().nanoTime() - getDeadline() > 0;
+    }
+
     protected void setPromise(Promise promise) {
         _promise = promise;
     }
@@ -53,6 +301,25 @@ public abstract class Call<T> {
 
         _resolved = true;
         _resolvedValue = value;
+        releasePermit(true);
+
+        if (_breakerPermit != CircuitBreaker.NO_PERMIT) {
+            _circuitBreaker.onSuccess(_breakerPermit);
+            _breakerPermit = CircuitBreaker.NO_PERMIT;
+        }
+
+        if (_cacheKey != null) {
+            _cache.put(_cacheKey, value);
+            _cacheKey = null;
+        }
+
+        completeJournal(true);
+
+        if (_flight != null) {
+            CallCoalescer.Flight flight = _flight;
+            _flight = null;
+            _coalescer.resolve(flight, value);
+        }
 
         if (_promise != null) {
             _promise.setResolved(this);
@@ -64,13 +331,30 @@ public abstract class Call<T> {
             return;
         }
 
+        releasePermit(false);
+        if (_breakerPermit != CircuitBreaker.NO_PERMIT) {
+            _circuitBreaker.onFailure(_breakerPermit);
+            _breakerPermit = CircuitBreaker.NO_PERMIT;
+        }
+
+        // no retries for a cancelled Promise
+        if (isCancelled()) {
+            setRejected(e);
+            return;
+        }
+
         --_retries;
         // are retries wanted?
         if (_retries>=0) {
+            // the circuit may have been opened by this failure, don't keep the Promise waiting for a retry
+            if (_circuitBreaker != null && _circuitBreaker.isOpen()) {
+                setRejected(_circuitBreaker.createOpenException());
+                return;
+            }
             // should there be a delay between retries?
             if (_retryDelay > 0) {
                 // schedule the retry at the specific time.
-                service.schedule(new Runnable() {
+                schedule(new Runnable() {
                     public void run() {
                         triggerCall(_params);
                     }
@@ -82,22 +366,136 @@ public abstract class Call<T> {
             return;
         }
 
+        setRejected(e);
+    }
+
+    /**
+     * rejects the Call without any further retries.
+     */
+    void setRejected(Throwable e) {
+        if (_rejected || _resolved)  {
+            return;
+        }
+
         _rejected = true;
+        releasePermit(false);
+        if (_breakerPermit != CircuitBreaker.NO_PERMIT) {
+            // permitted but not performed, e.g. cancelled while waiting for a thread
+            _circuitBreaker.release(_breakerPermit);
+            _breakerPermit = CircuitBreaker.NO_PERMIT;
+        }
+        completeJournal(false);
+
+        if (_flight != null) {
+            CallCoalescer.Flight flight = _flight;
+            _flight = null;
+            if (isCancelled()) {
+                // the Calls sharing the execution belong to other Promises, one of them takes over
+                _coalescer.abandon(flight);
+            } else {
+                _coalescer.reject(flight, e);
+            }
+        }
 
         if (_promise != null) {
             _promise.setRejected(e);
         }
     }
 
+    /**
+     * called when the Promise of this Call is cancelled. A shared execution is handed over to another Call right
+     * away, even if this one is still running.
+     */
+    void cancelled() {
+        CallCoalescer.Flight flight = _flight;
+        if (flight != null) {
+            _coalescer.abandon(flight);
+        }
+    }
+
+    /**
+     * performs the shared execution taken over from a cancelled Call.
+     */
+    void lead(CallCoalescer.Flight flight) {
+        _flight = flight;
+        triggerCall(_params);
+    }
+
+    private boolean isCancelled() {
+        return _promise != null && _promise.isCancelled();
+    }
+
     public void prepare() {
         _rejected = _resolved = false;
+        if (_hasDeadline) {
+            _deadline = Promise.getScheduler().nanoTime() + _timeoutNanos;
+        }
+    }
+
+    private void completeJournal(boolean resolved) {
+        if (_journalId != 0) {
+            _journal.complete(_journalId, resolved);
+            _journalId = 0;
+        }
+    }
+
+    Bulkhead.Permit getPermit() {
+        return _permit;
+    }
+
+    private void releasePermit(boolean success) {
+        Bulkhead.Permit permit = _permit;
+        if (permit != null) {
+            _permit = null;
+            permit.release(success);
+        }
+    }
+
+    static void schedule(Runnable runnable, long delay, TimeUnit unit) {
+        // used for retried tasks and other delayed work
+        Promise.getScheduler().schedule(runnable, delay, unit);
     }
 
     protected Promise getPromise() {
         return _promise;
     }
 
+    void setStageIndex(int stageIndex) {
+        _stageIndex = stageIndex;
+    }
+
+    int getStageIndex() {
+        return _stageIndex;
+    }
+
     public T getResolvedValue() {
         return _resolvedValue;
     }
+
+    /**
+     * creates a fresh copy of this Call to be used by another Promise.
+     * The copy shares the configuration (retries, delays) and the fields of the subclass (shallow copy), but not
+     * the state of the current execution.
+     *
+     * @return the copied Call
+     */
+    @SuppressWarnings("unchecked")
+    Call<T> copy() {
+        try {
+            Call<T> copy = (Call<T>) clone();
+            copy._promise = null;
+            copy._params = null;
+            copy._resolvedValue = null;
+            copy._cacheKey = null;
+            copy._flight = null;
+            copy._breakerPermit = CircuitBreaker.NO_PERMIT;
+            copy._permit = null;
+            copy._journalId = 0;
+            copy._rejected = copy._resolved = false;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            // can't happen, we are Cloneable
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,169 @@
+package com.mecasa.jspromise;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the keys of concurrently triggered {@link BatchingCall}s and performs them as a single bulk operation.
+ *
+ * A batch is dispatched as soon as it contains the maximum number of Calls, or when the maximum delay since
+ * its first Call has passed. The batch is performed on the {@link Executor} set with
+ * {@link #setExecutor(Executor)}, or the Executor of the Promise of its first Call.
+ *
+ * <pre>
+ *     CallBatcher&lt;String, User&gt; userBatcher = new CallBatcher&lt;String, User&gt;(100, 500, TimeUnit.MICROSECONDS) {
+ *         protected Map&lt;String, User&gt; call(Set&lt;String&gt; keys) throws Throwable {
+ *             return userStore.getAll(keys);
+ *         }
+ *     };
+ * </pre>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public abstract class CallBatcher<K, V> {
+    private final int _maxBatchSize;
+    private final long _maxDelay;
+    private final TimeUnit _maxDelayUnit;
+    private Executor _executor;
+
+    private Batch<K, V> _batch;
+
+    /**
+     * @param maxBatchSize the number of Calls which dispatches a batch immediately.
+     * @param maxDelay     the maximum time a Call waits for its batch to be dispatched.
+     * @param unit         the {@link TimeUnit} of maxDelay.
+     */
+    public CallBatcher(int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize <= 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("invalid batch size or delay");
+        }
+        _maxBatchSize = maxBatchSize;
+        _maxDelay = maxDelay;
+        _maxDelayUnit = unit;
+    }
+
+    /**
+     * performs the bulk operation.
+     *
+     * @param keys the distinct keys of all Calls in the batch.
+     * @return the value for each key. Calls with keys missing in the result are resolved with null.
+     * @throws Throwable if the operation failed. All Calls of the batch get rejected.
+     */
+    protected abstract Map<K, V> call(Set<K> keys) throws Throwable;
+
+    /**
+     * Specifies the {@link Executor} performing the batches.
+     *
+     * @param executor the {@link Executor} to use, or null to use the one of the Promise of the first Call.
+     * @return the CallBatcher
+     */
+    public CallBatcher<K, V> setExecutor(Executor executor) {
+        _executor = executor;
+        return this;
+    }
+
+    void add(K key, BatchingCall<K, V> call) {
+        Batch<K, V> full = null;
+        synchronized (this) {
+            final Batch<K, V> batch = _batch != null ? _batch : (_batch = new Batch<K, V>());
+            batch.add(key, call);
+            if (batch.size >= _maxBatchSize) {
+                _batch = null;
+                full = batch;
+            } else if (batch.size == 1) {
+                Call.schedule(new Runnable() {
+                    public void run() {
+                        flush(batch);
+                    }
+                }, _maxDelay, _maxDelayUnit);
+            }
+        }
+
+        if (full != null) {
+            dispatch(full);
+        }
+    }
+
+    private void flush(Batch<K, V> batch) {
+        synchronized (this) {
+            if (_batch != batch) {
+                // already dispatched because it was full
+                return;
+            }
+            _batch = null;
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(final Batch<K, V> batch) {
+        Executor executor = _executor;
+        if (executor == null) {
+            Promise promise = batch.firstCall.getPromise();
+            executor = promise != null ? promise.getExecutor() : Promise.getDefaultExecutor();
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    perform(batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            for (List<BatchingCall<K, V>> calls : batch.calls.values()) {
+                for (BatchingCall<K, V> call : calls) {
+                    call.setRejected(e);
+                }
+            }
+        }
+    }
+
+    private void perform(Batch<K, V> batch) {
+        Map<K, V> values;
+        try {
+            values = call(Collections.unmodifiableSet(batch.calls.keySet()));
+            if (values == null) {
+                values = Collections.emptyMap();
+            }
+        } catch (Throwable e) {
+            for (List<BatchingCall<K, V>> calls : batch.calls.values()) {
+                for (BatchingCall<K, V> call : calls) {
+                    call.reject(e);
+                }
+            }
+            return;
+        }
+
+        for (Map.Entry<K, List<BatchingCall<K, V>>> entry : batch.calls.entrySet()) {
+            V value = values.get(entry.getKey());
+            for (BatchingCall<K, V> call : entry.getValue()) {
+                call.resolve(value);
+            }
+        }
+    }
+
+    private static final class Batch<K, V> {
+        final Map<K, List<BatchingCall<K, V>>> calls = new LinkedHashMap<K, List<BatchingCall<K, V>>>();
+        BatchingCall<K, V> firstCall;
+        int size;
+
+        void add(K key, BatchingCall<K, V> call) {
+            List<BatchingCall<K, V>> keyCalls = calls.get(key);
+            if (keyCalls == null) {
+                keyCalls = new ArrayList<BatchingCall<K, V>>(1);
+                calls.put(key, keyCalls);
+            }
+            keyCalls.add(call);
+            if (firstCall == null) {
+                firstCall = call;
+            }
+            ++size;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.mecasa.jspromise;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache for the resolved values of idempotent {@link Call}s, see {@link Call#cached(CallCache)}.
+ *
+ * Entries expire after the given time to live. If the cache is full, the least recently used entry is evicted.
+ * A Call hitting the cache is resolved immediately on the triggering thread, without being executed at all.
+ *
+ * The key only consists of the parameters by default, so use a separate cache per kind of lookup: a user lookup
+ * and an order lookup triggered with the same id would otherwise get each other's values.
+ */
+public class CallCache {
+    private final KeyFunction _keyFunction;
+    private final long _ttlNanos;
+    private final Map<Object, Entry> _entries;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * Creates a cache using the parameters of the Call as key.
+     *
+     * @param timeToLive the time a value is kept in the cache.
+     * @param unit       the {@link TimeUnit} of timeToLive.
+     * @param maxSize    the maximum number of values kept in the cache.
+     */
+    public CallCache(long timeToLive, TimeUnit unit, int maxSize) {
+        this(new KeyFunction() {
+            public Object getKey(Object... params) {
+                return Arrays.asList(params);
+            }
+        }, timeToLive, unit, maxSize);
+    }
+
+    /**
+     * @param keyFunction computes the cache key from the parameters of the Call.
+     * @param timeToLive  the time a value is kept in the cache.
+     * @param unit        the {@link TimeUnit} of timeToLive.
+     * @param maxSize     the maximum number of values kept in the cache.
+     */
+    public CallCache(KeyFunction keyFunction, long timeToLive, TimeUnit unit, final int maxSize) {
+        if (keyFunction == null) {
+            throw new IllegalArgumentException("key function must not be null");
+        }
+        if (timeToLive <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("time to live and size must be positive");
+        }
+        _keyFunction = keyFunction;
+        _ttlNanos = unit.toNanos(timeToLive);
+        _entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CallCache.Entry> eldest) {
+                if (size() > maxSize) {
+                    _evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    Object getKey(Object[] params) {
+        return _keyFunction.getKey(params);
+    }
+
+    /**
+     * @return the cached entry for the key, or null if there is no valid entry.
+     */
+    synchronized Entry get(Object key) {
+        Entry entry = _entries.get(key);
+        if (entry != null && entry.expiresAt - Promise.getScheduler().nanoTime() <= 0) {
+            _entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            _misses.incrementAndGet();
+        } else {
+            _hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    synchronized void put(Object key, Object value) {
+        _entries.put(key, new Entry(value, Promise.getScheduler().nanoTime() + _ttlNanos));
+    }
+
+    /**
+     * Removes the value for the given key.
+     *
+     * @param key the key as returned by the {@link KeyFunction}.
+     */
+    public synchronized void invalidate(Object key) {
+        _entries.remove(key);
+    }
+
+    /**
+     * Removes all values.
+     */
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * @return the number of values in the cache, including expired ones not removed yet.
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+    static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.mecasa.jspromise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent {@link Call}s with the same key share a single execution, see {@link Call#coalesced(CallCoalescer)}.
+ *
+ * The first Call triggered for a key is performed as usual, including its retries. Every Call triggered with the
+ * same key while the first one is in flight is not performed at all, but resolved or rejected with the outcome of
+ * the first one.
+ *
+ * Executions only overlap while they are in flight, nothing is kept afterwards. Combine it with a {@link CallCache}
+ * to share results beyond that.
+ */
+public class CallCoalescer {
+    private final KeyFunction _keyFunction;
+    private final ConcurrentMap<Object, Flight> _flights = new ConcurrentHashMap<Object, Flight>();
+    private final AtomicLong _coalesced = new AtomicLong();
+
+    /**
+     * Creates a CallCoalescer using the parameters of the Call as key.
+     */
+    public CallCoalescer() {
+        this(new KeyFunction() {
+            public Object getKey(Object... params) {
+                return Arrays.asList(params);
+            }
+        });
+    }
+
+    /**
+     * @param keyFunction computes the key from the parameters of the Call.
+     */
+    public CallCoalescer(KeyFunction keyFunction) {
+        if (keyFunction == null) {
+            throw new IllegalArgumentException("key function must not be null");
+        }
+        _keyFunction = keyFunction;
+    }
+
+    Object getKey(Object[] params) {
+        return _keyFunction.getKey(params);
+    }
+
+    /**
+     * Joins the execution in flight for the key, or starts a new one.
+     *
+     * @return the started Flight if the given Call has to be performed, null if it joined a Flight in progress
+     */
+    Flight join(Object key, Call call) {
+        Flight flight = new Flight(key);
+        while (true) {
+            Flight inFlight = _flights.putIfAbsent(key, flight);
+            if (inFlight == null) {
+                return flight;
+            }
+            if (inFlight.add(call)) {
+                _coalesced.incrementAndGet();
+                return null;
+            }
+            // the flight just completed, try again
+            _flights.remove(key, inFlight);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void resolve(Flight flight, Object value) {
+        for (Call call : complete(flight)) {
+            call.resolve(value);
+        }
+    }
+
+    void reject(Flight flight, Throwable reason) {
+        for (Call call : complete(flight)) {
+            call.setRejected(reason);
+        }
+    }
+
+    /**
+     * hands the execution over to the first Call waiting for it, once the Promise of the performing Call was
+     * cancelled. The other Calls wait for the new one.
+     */
+    void abandon(Flight flight) {
+        List<Call> followers = flight.complete();
+        if (followers.isEmpty()) {
+            _flights.remove(flight.key, flight);
+            return;
+        }
+
+        Flight next = new Flight(flight.key);
+        for (int i = 1; i < followers.size(); i++) {
+            next.add(followers.get(i));
+        }
+        // Calls triggered from now on join the new execution, unless another one took the key meanwhile
+        _flights.replace(flight.key, flight, next);
+        followers.get(0).lead(next);
+    }
+
+    private List<Call> complete(Flight flight) {
+        _flights.remove(flight.key, flight);
+        return flight.complete();
+    }
+
+    /**
+     * @return the number of Calls which were not performed but joined another execution.
+     */
+    public long getCoalescedCount() {
+        return _coalesced.get();
+    }
+
+    /**
+     * @return the number of executions currently in flight.
+     */
+    public int getInFlightCount() {
+        return _flights.size();
+    }
+
+    static final class Flight {
+        final Object key;
+        private List<Call> _followers = new ArrayList<Call>();
+
+        Flight(Object key) {
+            this.key = key;
+        }
+
+        synchronized boolean add(Call call) {
+            if (_followers == null) {
+                return false;
+            }
+            _followers.add(call);
+            return true;
+        }
+
+        /**
+         * @return the Calls to complete, empty if the Flight was completed before.
+         */
+        synchronized List<Call> complete() {
+            List<Call> followers = _followers;
+            if (followers == null) {
+                return Collections.emptyList();
+            }
+            _followers = null;
+            return followers;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.mecasa.jspromise;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes a set of {@link Call}s with dependencies between them. Used as a stage of a Promise, each Call is
+ * triggered as soon as the Calls it depends on are resolved, instead of waiting for the whole previous stage:
+ *
+ * <pre>
+ *     CallGraph graph = new CallGraph()
+ *         .add(usersCall)
+ *         .add(ordersCall)
+ *         .add(profileCall, usersCall)
+ *         .add(reportCall, profileCall, ordersCall);
+ *
+ *     Promise.when(graph).resolve(resultHandler);
+ * </pre>
+ *
+ * A Call without dependencies gets the values of the previous stage as parameters, all other Calls get the
+ * resolved values of their dependencies in the order they were declared.
+ * The stage resolves once all Calls are resolved and passes on the values of all Calls in the order they were
+ * added to the graph.
+ *
+ * As dependencies have to be added before the Calls depending on them, a CallGraph can't contain cycles.
+ */
+public class CallGraph {
+    private final List<Call> _calls = new ArrayList<Call>();
+    private final List<int[]> _dependencies = new ArrayList<int[]>();
+    private final Map<Call, Integer> _indices = new IdentityHashMap<Call, Integer>();
+
+    /**
+     * Adds a Call to the graph.
+     *
+     * @param call         the {@link Call} to add.
+     * @param dependencies the Calls which have to be resolved before the added Call is triggered. They have to be
+     *                     part of this graph already.
+     * @return the CallGraph
+     */
+    public CallGraph add(Call call, Call... dependencies) {
+        if (call == null) {
+            throw new IllegalArgumentException("null task not allowed");
+        }
+        if (_indices.containsKey(call)) {
+            throw new IllegalArgumentException("task already added to the graph");
+        }
+
+        int[] indices = new int[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            Integer index = _indices.get(dependencies[i]);
+            if (index == null) {
+                throw new IllegalArgumentException("dependency has to be added to the graph first");
+            }
+            indices[i] = index;
+        }
+
+        _indices.put(call, _calls.size());
+        _calls.add(call);
+        _dependencies.add(indices);
+        return this;
+    }
+
+    /**
+     * @return the number of Calls in this graph.
+     */
+    public int size() {
+        return _calls.size();
+    }
+
+    Stage toStage() {
+        if (_calls.isEmpty()) {
+            throw new IllegalArgumentException("empty task list not allowed");
+        }
+        return new Stage(_calls.toArray(new Call[_calls.size()]),
+                _dependencies.toArray(new int[_dependencies.size()][]));
+    }
+}
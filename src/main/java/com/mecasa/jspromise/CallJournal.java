@@ -0,0 +1,438 @@
+package com.mecasa.jspromise;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of {@link Call}s, giving them at-least-once execution across restarts of the JVM.
+ * See {@link Call#journal(CallJournal)}.
+ *
+ * A journaled Call is only performed once its dispatch, including the Call itself and its parameters, is written to
+ * the disk. Its resolution or final rejection is recorded as well. After a crash, {@link #recover()} creates new
+ * Promises for all Calls dispatched but never completed.
+ *
+ * The records are appended by a single writer thread. All records waiting while the disk is synced are written and
+ * synced together, so the cost of a sync is shared by all Calls dispatched in the meantime. The written Calls are
+ * performed on the Executor of their Promise. The journal is compacted whenever it is opened, and by the writer thread
+ * once a given number of Calls completed since the last compaction.
+ *
+ * Journaled Calls have to be {@link java.io.Serializable}, as well as their parameters. Only the fields of the Call
+ * subclass are recorded, not its configuration like retries or caches.
+ */
+public class CallJournal {
+    private static final byte DISPATCHED = 1;
+    private static final byte RESOLVED = 2;
+    private static final byte REJECTED = 3;
+    // type and id
+    private static final int RECORD_HEADER = 9;
+    private static final int DEFAULT_COMPACT_THRESHOLD = 10000;
+
+    private static final Record STOP = new Record(null, null, null);
+
+    private final File _file;
+    private final int _compactThreshold;
+    // replaced by the writer thread on compaction
+    private FileChannel _channel;
+    private final AtomicLong _nextId = new AtomicLong(1);
+    private final BlockingQueue<Record> _queue = new LinkedBlockingQueue<Record>();
+    private final Thread _writer;
+    // guards closing against records queued behind the STOP record
+    private final Object _lock = new Object();
+    private volatile boolean _closed;
+
+    // the records of the Calls not completed before the journal was opened, by id
+    private final Map<Long, byte[]> _unresolved = new LinkedHashMap<Long, byte[]>();
+    // the records of all Calls in the journal not completed yet, only used by the writer thread
+    private final Map<Long, byte[]> _live = new LinkedHashMap<Long, byte[]>();
+    // the number of completions written since the last compaction, only used by the writer thread
+    private int _completed;
+
+    /**
+     * Opens the journal, creating the file if necessary.
+     *
+     * @param file the journal file.
+     * @throws IOException if the journal can't be read or written.
+     */
+    public CallJournal(File file) throws IOException {
+        this(file, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * Opens the journal, creating the file if necessary.
+     *
+     * @param file             the journal file.
+     * @param compactThreshold the number of completed Calls after which the journal is compacted. Defaults to 10000.
+     * @throws IOException if the journal can't be read or written.
+     */
+    public CallJournal(File file, int compactThreshold) throws IOException {
+        if (compactThreshold <= 0) {
+            throw new IllegalArgumentException("invalid compact threshold");
+        }
+        _file = file;
+        _compactThreshold = compactThreshold;
+        load();
+        _live.putAll(_unresolved);
+        compact(_live.values());
+        _channel = open();
+
+        _writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "CallJournal " + file.getName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Creates a Promise for each Call dispatched but not completed before the journal was opened, in the order they
+     * were dispatched. The Calls are performed again once the Promises are started, they stay in the journal until
+     * they complete.
+     *
+     * @return the Promises, not started yet. Empty if there is nothing to recover, or if recover() was called before.
+     * @throws IOException if a Call can't be restored.
+     */
+    public synchronized List<Promise> recover() throws IOException {
+        List<Promise> promises = new ArrayList<Promise>(_unresolved.size());
+        Iterator<Map.Entry<Long, byte[]>> iterator = _unresolved.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, byte[]> entry = iterator.next();
+            byte[] data = entry.getValue();
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(data, RECORD_HEADER, data.length - RECORD_HEADER));
+            Call call;
+            Object[] params;
+            try {
+                call = (Call) in.readObject();
+                params = (Object[]) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("can't restore call " + entry.getKey(), e);
+            }
+
+            call.journal(this);
+            // already recorded, performed right away
+            call.setJournalId(entry.getKey());
+            promises.add(new Promise(new Stage[]{Stage.of(new Call[]{call})}, params));
+            iterator.remove();
+        }
+        return promises;
+    }
+
+    /**
+     * Writes all pending records and closes the journal. Calls dispatched afterwards are rejected, completions
+     * are not recorded anymore.
+     *
+     * @throws IOException if the journal can't be closed.
+     */
+    public void close() throws IOException {
+        synchronized (_lock) {
+            if (!_closed) {
+                _closed = true;
+                _queue.add(STOP);
+            }
+        }
+        try {
+            _writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _channel.close();
+    }
+
+    /**
+     * records the dispatch of a Call, which is performed once the record is written.
+     */
+    void dispatch(Call call, Object[] params) {
+        if (_closed) {
+            call.setRejected(new RejectedExecutionException("journal " + _file + " is closed"));
+            return;
+        }
+
+        long id = _nextId.getAndIncrement();
+        byte[] data;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeHeader(bytes, DISPATCHED, id);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(call);
+            out.writeObject(params);
+            out.close();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            call.setRejected(e);
+            return;
+        }
+
+        synchronized (_lock) {
+            if (!_closed) {
+                call.setJournalId(id);
+                _queue.add(new Record(data, call, params));
+                return;
+            }
+        }
+        call.setRejected(new RejectedExecutionException("journal " + _file + " is closed"));
+    }
+
+    /**
+     * records the completion of a Call, without waiting for it to be written.
+     */
+    void complete(long id, boolean resolved) {
+        if (_closed) {
+            // the Call is performed again on recovery
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER);
+        writeHeader(bytes, resolved ? RESOLVED : REJECTED, id);
+        synchronized (_lock) {
+            if (!_closed) {
+                _queue.add(new Record(bytes.toByteArray(), null, null));
+            }
+        }
+    }
+
+    private void write() {
+        List<Record> batch = new ArrayList<Record>();
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(_queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            // everything queued up while the last batch was synced
+            _queue.drainTo(batch);
+
+            int size = 0;
+            for (Record record : batch) {
+                if (record == STOP) {
+                    stopped = true;
+                } else {
+                    size += 8 + record.data.length;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            CRC32 crc = new CRC32();
+            for (Record record : batch) {
+                if (record != STOP) {
+                    crc.reset();
+                    crc.update(record.data);
+                    buffer.putInt(record.data.length);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.put(record.data);
+                }
+            }
+            buffer.flip();
+
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    _channel.write(buffer);
+                }
+                _channel.force(false);
+            } catch (IOException e) {
+                error = e;
+                e.printStackTrace();
+            }
+
+            for (Record record : batch) {
+                if (record == STOP) {
+                    continue;
+                }
+                if (error == null) {
+                    track(record);
+                }
+                if (record.call != null) {
+                    if (error != null) {
+                        record.call.setRejected(error);
+                    } else {
+                        submit(record);
+                    }
+                }
+            }
+            batch.clear();
+
+            if (!stopped && _completed >= _compactThreshold) {
+                compactOpen();
+            }
+        }
+    }
+
+    /**
+     * keeps track of the Calls in the journal which are not completed yet.
+     */
+    private void track(Record record) {
+        long id = getId(record.data);
+        if (record.data[0] == DISPATCHED) {
+            _live.put(id, record.data);
+        } else {
+            _live.remove(id);
+            _completed++;
+        }
+    }
+
+    /**
+     * performs the written Call on the Executor of its Promise, so a slow or failing Call doesn't hold up the
+     * writer thread.
+     */
+    private void submit(final Record record) {
+        Promise promise = record.call.getPromise();
+        Executor executor = promise != null ? promise.getExecutor() : Promise.getDefaultExecutor();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    record.call.submit(record.params);
+                }
+            });
+        } catch (RuntimeException e) {
+            record.call.setRejected(e);
+        }
+    }
+
+    /**
+     * compacts the journal while it is in use, on the writer thread. If that fails the records are appended to the
+     * journal as it is.
+     */
+    private void compactOpen() {
+        _completed = 0;
+        try {
+            _channel.close();
+            compact(_live.values());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            _channel = open();
+        } catch (IOException e) {
+            // the closed channel rejects all further Calls
+            e.printStackTrace();
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        FileChannel channel = new RandomAccessFile(_file, "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * reads all records, keeping the dispatches not completed yet. A record partially written on a crash ends the
+     * journal.
+     */
+    private void load() throws IOException {
+        File file = AtomicFile.getReadable(_file);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long maxId = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < RECORD_HEADER || length > file.length()) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                long id = getId(data);
+                if (data[0] == DISPATCHED) {
+                    _unresolved.put(id, data);
+                } else {
+                    _unresolved.remove(id);
+                }
+                maxId = Math.max(maxId, id);
+                _nextId.set(maxId + 1);
+            }
+        } catch (EOFException e) {
+            // end of the journal
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * rewrites the journal with the records of the Calls not completed yet.
+     */
+    private void compact(Collection<byte[]> records) throws IOException {
+        File temp = new File(_file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            CRC32 crc = new CRC32();
+            for (byte[] data : records) {
+                crc.reset();
+                crc.update(data);
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.putInt(data.length);
+                header.putInt((int) crc.getValue());
+                out.write(header.array());
+                out.write(data);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        AtomicFile.replace(temp, _file);
+    }
+
+    private static long getId(byte[] data) {
+        long id = 0;
+        for (int i = 1; i < RECORD_HEADER; i++) {
+            id = (id << 8) | (data[i] & 0xff);
+        }
+        return id;
+    }
+
+    private static void writeHeader(ByteArrayOutputStream bytes, byte type, long id) {
+        bytes.write(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            bytes.write((int) (id >>> shift));
+        }
+    }
+
+    private static final class Record {
+        final byte[] data;
+        // the dispatched Call, performed once the record is written
+        final Call call;
+        final Object[] params;
+
+        Record(byte[] data, Call call, Object[] params) {
+            this.data = data;
+            this.call = call;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.mecasa.jspromise;
+
+import java.io.Serializable;
+
+/**
+ * The state of a Promise chain after a completed stage, see {@link Promise#checkpoint(CheckpointStore, String)}.
+ */
+public final class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int _completedStages;
+    private final Object[] _values;
+
+    /**
+     * @param completedStages the number of stages completed.
+     * @param values          the resolved values of the last completed stage.
+     */
+    public Checkpoint(int completedStages, Object[] values) {
+        _completedStages = completedStages;
+        _values = values;
+    }
+
+    public int getCompletedStages() {
+        return _completedStages;
+    }
+
+    public Object[] getValues() {
+        return _values;
+    }
+}
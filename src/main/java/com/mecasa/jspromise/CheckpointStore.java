@@ -0,0 +1,33 @@
+package com.mecasa.jspromise;
+
+import java.io.IOException;
+
+/**
+ * Keeps the {@link Checkpoint}s of Promise chains, so they can be resumed after a restart.
+ * See {@link Promise#checkpoint(CheckpointStore, String)}.
+ */
+public interface CheckpointStore {
+    /**
+     * Replaces the checkpoint of a chain. The checkpoint has to be persisted once the method returns.
+     *
+     * @param id         the id of the chain.
+     * @param checkpoint the state after the last completed stage.
+     * @throws IOException if the checkpoint couldn't be saved.
+     */
+    void save(String id, Checkpoint checkpoint) throws IOException;
+
+    /**
+     * @param id the id of the chain.
+     * @return the last saved checkpoint, or null if there is none.
+     * @throws IOException if the checkpoint couldn't be read.
+     */
+    Checkpoint load(String id) throws IOException;
+
+    /**
+     * Removes the checkpoint of a chain, called once the chain is resolved.
+     *
+     * @param id the id of the chain.
+     * @throws IOException if the checkpoint couldn't be removed.
+     */
+    void remove(String id) throws IOException;
+}
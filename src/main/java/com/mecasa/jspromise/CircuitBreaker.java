@@ -0,0 +1,256 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A circuit breaker shared by all {@link Call}s to the same service, see {@link Call#circuitBreaker(CircuitBreaker)}.
+ *
+ * While CLOSED, the outcome of the last calls is recorded in a sliding window. Once the failure rate within the
+ * window reaches the threshold, the breaker switches to OPEN and all Calls are rejected immediately with a
+ * {@link RejectedExecutionException}, without being performed or retried.
+ * After the open duration the breaker switches to HALF_OPEN and lets a limited number of probe calls pass. If all
+ * of them succeed, the breaker is CLOSED again, a single failure opens it again.
+ *
+ * The breaker doesn't use any locks, so it can be shared by any number of threads. Each permit belongs to the state
+ * it was granted in, the outcome of a call still running when the state changes is ignored.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int EMPTY = 0;
+    private static final int SUCCESS = 1;
+    private static final int FAILURE = 2;
+
+    /**
+     * returned by {@link #tryAcquire()} if the call is not permitted.
+     */
+    static final long NO_PERMIT = -1;
+
+    private final String _name;
+    private final int _failureRateThreshold;
+    private final long _openDurationNanos;
+    private int _minimumCalls;
+    private int _probeCalls = 1;
+
+    private final AtomicReference<Phase> _phase = new AtomicReference<Phase>(new Phase(State.CLOSED, 0, 0, 0));
+
+    // ring buffer of the last outcomes
+    private final AtomicIntegerArray _window;
+    private final AtomicLong _position = new AtomicLong();
+    private final AtomicInteger _recorded = new AtomicInteger();
+    private final AtomicInteger _failures = new AtomicInteger();
+
+    /**
+     * @param name                 the name used in the rejection messages.
+     * @param windowSize           the number of recent calls the failure rate is computed of.
+     * @param failureRateThreshold the failure rate in percent which opens the circuit.
+     * @param openDuration         the time the circuit stays open before probe calls are let through.
+     * @param unit                 the {@link TimeUnit} of openDuration.
+     */
+    public CircuitBreaker(String name, int windowSize, int failureRateThreshold, long openDuration, TimeUnit unit) {
+        if (windowSize <= 0 || failureRateThreshold <= 0 || failureRateThreshold > 100 || openDuration < 0) {
+            throw new IllegalArgumentException("invalid circuit breaker configuration");
+        }
+        _name = name;
+        _failureRateThreshold = failureRateThreshold;
+        _openDurationNanos = unit.toNanos(openDuration);
+        _window = new AtomicIntegerArray(windowSize);
+        _minimumCalls = windowSize;
+    }
+
+    /**
+     * Specifies the number of calls which have to be recorded before the failure rate is evaluated.
+     * Defaults to the window size.
+     *
+     * @param minimumCalls the number of calls, at most the window size.
+     * @return the CircuitBreaker
+     */
+    public CircuitBreaker setMinimumCalls(int minimumCalls) {
+        if (minimumCalls <= 0 || minimumCalls > _window.length()) {
+            throw new IllegalArgumentException("minimum calls must be between 1 and the window size");
+        }
+        _minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * Specifies the number of successful probe calls required to close the circuit again. Defaults to 1.
+     *
+     * @param probeCalls the number of probe calls.
+     * @return the CircuitBreaker
+     */
+    public CircuitBreaker setProbeCalls(int probeCalls) {
+        if (probeCalls <= 0) {
+            throw new IllegalArgumentException("probe calls must be positive");
+        }
+        _probeCalls = probeCalls;
+        return this;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return the current state. An OPEN circuit reports OPEN until the next call is attempted after the
+     * open duration.
+     */
+    public State getState() {
+        return _phase.get().state;
+    }
+
+    /**
+     * @return the failure rate in percent within the sliding window, or -1 if not enough calls were recorded.
+     */
+    public int getFailureRate() {
+        int recorded = _recorded.get();
+        if (recorded < _minimumCalls) {
+            return -1;
+        }
+        return _failures.get() * 100 / recorded;
+    }
+
+    /**
+     * @return the permit of the call, or {@link #NO_PERMIT} if it may not be performed. Each permitted call has to
+     * report its outcome with {@link #onSuccess(long)} or {@link #onFailure(long)}, or return the permit with
+     * {@link #release(long)} if it isn't performed.
+     */
+    long tryAcquire() {
+        while (true) {
+            Phase phase = _phase.get();
+            switch (phase.state) {
+                case CLOSED:
+                    return phase.generation;
+
+                case OPEN:
+                    if (Promise.getScheduler().nanoTime() - phase.openedAt < _openDurationNanos) {
+                        return NO_PERMIT;
+                    }
+                    _phase.compareAndSet(phase,
+                            new Phase(State.HALF_OPEN, phase.generation + 1, phase.openedAt, _probeCalls));
+                    break;
+
+                case HALF_OPEN:
+                    int permits = phase.probePermits.get();
+                    if (permits <= 0) {
+                        return NO_PERMIT;
+                    }
+                    if (phase.probePermits.compareAndSet(permits, permits - 1)) {
+                        if (_phase.get() == phase) {
+                            return phase.generation;
+                        }
+                        // opened or closed meanwhile, try again in the new state
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the circuit is open and the open duration hasn't passed yet. Doesn't acquire a permit.
+     */
+    boolean isOpen() {
+        Phase phase = _phase.get();
+        return phase.state == State.OPEN && Promise.getScheduler().nanoTime() - phase.openedAt < _openDurationNanos;
+    }
+
+    RejectedExecutionException createOpenException() {
+        return new RejectedExecutionException("circuit breaker " + _name + " is open");
+    }
+
+    void onSuccess(long permit) {
+        Phase phase = _phase.get();
+        if (phase.generation != permit) {
+            return;
+        }
+        if (phase.state == State.HALF_OPEN) {
+            if (phase.probeSuccesses.incrementAndGet() >= _probeCalls) {
+                // reset before closing, so no call of the new phase is recorded in the old window
+                resetWindow();
+                _phase.compareAndSet(phase, new Phase(State.CLOSED, phase.generation + 1, 0, 0));
+            }
+            return;
+        }
+        record(SUCCESS);
+    }
+
+    /**
+     * returns the permit of a call which wasn't performed after all, no outcome is recorded.
+     */
+    void release(long permit) {
+        Phase phase = _phase.get();
+        if (phase.generation == permit && phase.state == State.HALF_OPEN) {
+            phase.probePermits.incrementAndGet();
+        }
+    }
+
+    void onFailure(long permit) {
+        Phase phase = _phase.get();
+        if (phase.generation != permit) {
+            return;
+        }
+        if (phase.state == State.HALF_OPEN || record(FAILURE)) {
+            open(phase);
+        }
+    }
+
+    /**
+     * @return true if the failure rate threshold is reached.
+     */
+    private boolean record(int outcome) {
+        int index = (int) (_position.getAndIncrement() % _window.length());
+        int previous = _window.getAndSet(index, outcome);
+        if (previous == EMPTY) {
+            _recorded.incrementAndGet();
+        } else if (previous == FAILURE) {
+            _failures.decrementAndGet();
+        }
+
+        if (outcome == FAILURE) {
+            _failures.incrementAndGet();
+        }
+
+        int recorded = _recorded.get();
+        return recorded >= _minimumCalls && _failures.get() * 100 >= _failureRateThreshold * recorded;
+    }
+
+    private void open(Phase phase) {
+        _phase.compareAndSet(phase, new Phase(State.OPEN, phase.generation + 1, Promise.getScheduler().nanoTime(), 0));
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < _window.length(); i++) {
+            _window.set(i, EMPTY);
+        }
+        _recorded.set(0);
+        _failures.set(0);
+    }
+
+    /**
+     * a state of the breaker. Each change creates a new Phase with the next generation, which identifies the
+     * permits granted in it.
+     */
+    private static final class Phase {
+        final State state;
+        final long generation;
+        // when the circuit was opened, only used while OPEN or HALF_OPEN
+        final long openedAt;
+        // only used while HALF_OPEN
+        final AtomicInteger probePermits;
+        final AtomicInteger probeSuccesses = new AtomicInteger();
+
+        Phase(State state, long generation, long openedAt, int probePermits) {
+            this.state = state;
+            this.generation = generation;
+            this.openedAt = openedAt;
+            this.probePermits = new AtomicInteger(probePermits);
+        }
+    }
+}
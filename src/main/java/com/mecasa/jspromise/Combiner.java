@@ -0,0 +1,9 @@
+package com.mecasa.jspromise;
+
+/**
+ * Combines two partial results into one, see {@link Promise#mapReduce(java.util.Collection, Mapper, Combiner)}.
+ * The partial results are combined in any order, so the combination has to be associative and commutative.
+ */
+public interface Combiner<R> {
+    R combine(R result1, R result2);
+}
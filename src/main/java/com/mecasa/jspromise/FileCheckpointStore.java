@@ -0,0 +1,80 @@
+package com.mecasa.jspromise;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * A {@link CheckpointStore} writing each checkpoint to a file of its own, using Java serialization. The values of
+ * the stages have to be {@link java.io.Serializable}.
+ *
+ * A checkpoint is written to a temporary file, synced to the disk and then renamed, so a crash while saving leaves
+ * the previous checkpoint intact. See {@link AtomicFile}.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private static final String SUFFIX = ".checkpoint";
+
+    private final File _directory;
+
+    /**
+     * @param directory the directory of the checkpoint files, created if necessary. The ids of the chains are
+     *                  used as file names.
+     */
+    public FileCheckpointStore(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("can't create checkpoint directory " + directory);
+        }
+        _directory = directory;
+    }
+
+    public void save(String id, Checkpoint checkpoint) throws IOException {
+        File file = getFile(id);
+        File temp = new File(_directory, id + SUFFIX + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(out));
+            objectOut.writeObject(checkpoint);
+            objectOut.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        AtomicFile.replace(temp, file);
+    }
+
+    public Checkpoint load(String id) throws IOException {
+        ObjectInputStream in;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(AtomicFile.getReadable(getFile(id)))));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return (Checkpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("can't read checkpoint " + id, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void remove(String id) throws IOException {
+        File file = getFile(id);
+        if (!AtomicFile.delete(file)) {
+            throw new IOException("can't remove checkpoint " + file);
+        }
+    }
+
+    private File getFile(String id) {
+        return new File(_directory, id + SUFFIX);
+    }
+}
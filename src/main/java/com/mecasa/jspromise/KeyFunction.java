@@ -0,0 +1,13 @@
+package com.mecasa.jspromise;
+
+/**
+ * Computes the key identifying a {@link Call} invocation from the parameters passed to it.
+ * Calls triggered with equal keys are considered to produce the same result.
+ */
+public interface KeyFunction {
+    /**
+     * @param params the parameters the Call is triggered with.
+     * @return the key, or null if the invocation must not be shared with any other.
+     */
+    Object getKey(Object... params);
+}
@@ -0,0 +1,126 @@
+package com.mecasa.jspromise;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Splits a collection into one chunk per thread, each processed by a single {@link BlockingCall}.
+ * See {@link Promise#map(Collection, Mapper, int)} and {@link Promise#mapReduce(Collection, Mapper, Combiner)}.
+ */
+final class MapReduce {
+
+    private MapReduce() {
+    }
+
+    static <T, R> Promise map(Collection<T> items, Mapper<T, R> mapper, int parallelism) {
+        final Job<T, R> job = new Job<T, R>(items, mapper, null);
+        return run(job, parallelism, new AsyncCall<List<Object>>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(Arrays.asList(job.output));
+            }
+        });
+    }
+
+    static <T, R> Promise mapReduce(Collection<T> items, Mapper<T, R> mapper, Combiner<R> combiner,
+                                    int parallelism) {
+        final Job<T, R> job = new Job<T, R>(items, mapper, combiner);
+        return run(job, parallelism, new AsyncCall<R>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(job.getResult());
+            }
+        });
+    }
+
+    private static <T, R> Promise run(Job<T, R> job, int parallelism, Call<?> collectCall) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+
+        int length = job.input.size();
+        int chunkCount = Math.max(1, Math.min(parallelism, length));
+        Call<?>[] chunks = new Call<?>[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            // spread the remainder over the first chunks
+            chunks[i] = new Chunk<T, R>(job, (int) ((long) length * i / chunkCount),
+                    (int) ((long) length * (i + 1) / chunkCount));
+        }
+        return Promise.when(chunks).then(collectCall);
+    }
+
+    /**
+     * the state shared by the chunks of one map or mapReduce.
+     */
+    private static final class Job<T, R> {
+        final List<T> input;
+        // the mapped values, only used without Combiner
+        final Object[] output;
+        final Mapper<T, R> mapper;
+        final Combiner<R> combiner;
+        private R _result;
+        private boolean _hasResult;
+        // set by the first failing chunk, so the others stop early
+        volatile boolean failed;
+
+        Job(Collection<T> items, Mapper<T, R> mapper, Combiner<R> combiner) {
+            this.input = new ArrayList<T>(items);
+            this.output = combiner == null ? new Object[input.size()] : null;
+            this.mapper = mapper;
+            this.combiner = combiner;
+        }
+
+        /**
+         * combines the partial result of a chunk as soon as it is done.
+         */
+        synchronized void combine(R partial) {
+            if (_hasResult) {
+                _result = combiner.combine(_result, partial);
+            } else {
+                _result = partial;
+                _hasResult = true;
+            }
+        }
+
+        synchronized R getResult() {
+            return _result;
+        }
+    }
+
+    private static final class Chunk<T, R> extends BlockingCall<Object> {
+        private final Job<T, R> _job;
+        private final int _from;
+        private final int _to;
+
+        Chunk(Job<T, R> job, int from, int to) {
+            _job = job;
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            final Job<T, R> job = _job;
+            try {
+                if (job.combiner == null) {
+                    for (int i = _from; i < _to && !job.failed; i++) {
+                        job.output[i] = job.mapper.map(job.input.get(i));
+                    }
+                } else if (_from < _to) {
+                    R partial = job.mapper.map(job.input.get(_from));
+                    for (int i = _from + 1; i < _to && !job.failed; i++) {
+                        partial = job.combiner.combine(partial, job.mapper.map(job.input.get(i)));
+                    }
+                    job.combine(partial);
+                }
+            } catch (Throwable e) {
+                job.failed = true;
+                throw e;
+            }
+            // the values are collected by the Job, not passed on
+            resolve(null);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.mecasa.jspromise;
+
+/**
+ * Maps a single element of a collection, see {@link Promise#map(java.util.Collection, Mapper, int)}.
+ */
+public interface Mapper<T, R> {
+    /**
+     * @param item the element to map.
+     * @return the mapped value.
+     * @throws Throwable rejecting the Promise.
+     */
+    R map(T item) throws Throwable;
+}
@@ -0,0 +1,31 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link CheckpointStore} keeping the checkpoints in memory. It survives the Promises, but not the JVM, e.g. to
+ * resume a chain recreated after a failed stage.
+ */
+public class MemoryCheckpointStore implements CheckpointStore {
+    private final ConcurrentMap<String, Checkpoint> _checkpoints = new ConcurrentHashMap<String, Checkpoint>();
+
+    public void save(String id, Checkpoint checkpoint) {
+        _checkpoints.put(id, checkpoint);
+    }
+
+    public Checkpoint load(String id) {
+        return _checkpoints.get(id);
+    }
+
+    public void remove(String id) {
+        _checkpoints.remove(id);
+    }
+
+    /**
+     * @return the number of chains with a checkpoint.
+     */
+    public int size() {
+        return _checkpoints.size();
+    }
+}
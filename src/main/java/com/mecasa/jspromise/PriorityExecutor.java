@@ -0,0 +1,108 @@
+package com.mecasa.jspromise;
+
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link Executor} with a fixed number of threads, performing the waiting tasks ordered by their priority
+ * instead of the order they were submitted in.
+ *
+ * Tasks with a higher priority run first. Tasks of the same priority run earliest deadline first, tasks without a
+ * deadline after those with one, and in submission order otherwise.
+ * {@link BlockingCall}s use the priority and deadline set on the Call or its Promise, see
+ * {@link Promise#setPriority(int)} and {@link Promise#setDeadline(long, TimeUnit)}.
+ */
+public class PriorityExecutor implements Executor {
+
+    /**
+     * Implemented by tasks passed to the executor to specify their order. Other tasks have priority 0 and no
+     * deadline.
+     */
+    public interface Prioritized {
+        int getPriority();
+
+        boolean hasDeadline();
+
+        /**
+         * @return the deadline in terms of {@link Scheduler#nanoTime()}.
+         */
+        long getDeadline();
+    }
+
+    private static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+        public int compare(Runnable runnable1, Runnable runnable2) {
+            Entry entry1 = (Entry) runnable1;
+            Entry entry2 = (Entry) runnable2;
+            if (entry1.priority != entry2.priority) {
+                return entry1.priority > entry2.priority ? -1 : 1;
+            }
+            if (entry1.hasDeadline != entry2.hasDeadline) {
+                return entry1.hasDeadline ? -1 : 1;
+            }
+            if (entry1.hasDeadline && entry1.deadline != entry2.deadline) {
+                return entry1.deadline - entry2.deadline < 0 ? -1 : 1;
+            }
+            return entry1.sequence < entry2.sequence ? -1 : (entry1.sequence == entry2.sequence ? 0 : 1);
+        }
+    };
+
+    private final ThreadPoolExecutor _executor;
+    private final AtomicLong _sequence = new AtomicLong();
+
+    /**
+     * @param threads the number of threads performing the tasks.
+     */
+    public PriorityExecutor(int threads) {
+        _executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(11, ORDER));
+    }
+
+    public void execute(Runnable command) {
+        _executor.execute(new Entry(command, _sequence.getAndIncrement()));
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return _executor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new tasks, the waiting tasks are still performed.
+     */
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    private static final class Entry implements Runnable {
+        final Runnable task;
+        final long sequence;
+        final int priority;
+        final boolean hasDeadline;
+        final long deadline;
+
+        Entry(Runnable task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+            if (task instanceof Prioritized) {
+                Prioritized prioritized = (Prioritized) task;
+                priority = prioritized.getPriority();
+                hasDeadline = prioritized.hasDeadline();
+                deadline = prioritized.getDeadline();
+            } else {
+                priority = 0;
+                hasDeadline = false;
+                deadline = 0;
+            }
+        }
+
+        public void run() {
+            task.run();
+        }
+    }
+}
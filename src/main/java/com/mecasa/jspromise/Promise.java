@@ -3,12 +3,18 @@ package com.mecasa.jspromise;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Queue;
 import java.util.Vector;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * User: peter
@@ -16,15 +22,21 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Time: 15:39
  */
 public class Promise {
-    private Call[] _tasks;
-    private Queue<Call[]> _queue = new LinkedList<Call[]>();
+    private Stage _stage;
+    // per Call of a CallGraph stage the number of dependencies not resolved yet
+    private int[] _pending;
+    private final Queue<Stage> _queue = new ConcurrentLinkedQueue<Stage>();
     private int _stageComplete;
     private final Object _completionSyncObject = new Object();
 
-    private Result<Throwable> _rejectedHandler;
-    private Result<Object[]> _resolvedHandler;
-    private Runnable _fulfilledRunnable;
-    private Throwable _rejectedReason;
+    private final Queue<Listener> _listeners = new ConcurrentLinkedQueue<Listener>();
+    private Executor _callbackExecutor;
+    // the result of the last completion, null while Calls are pending
+    private final AtomicReference<Outcome> _outcome = new AtomicReference<Outcome>();
+    // counts the completions, see then(Call...)
+    private int _epoch;
+    // the epoch of the last completion all handlers were notified of, guarded by _completionSyncObject
+    private int _notifiedEpoch;
 
 
     private final Vector<Object> _values = new Vector<Object>();
@@ -35,14 +47,46 @@ public class Promise {
         }
     };
 
-    private final AtomicBoolean _fulfilled = new AtomicBoolean(false);
-    private boolean _rejected = false;
+    private static volatile Scheduler sScheduler = Scheduler.SYSTEM;
+
+    private volatile boolean _rejected = false;
+    // true once the last stage resolved the Promise, until a stage is added. Guarded by the Promise.
     private boolean _resolved = false;
-    private boolean _started = false;
+    private volatile boolean _started = false;
+    private volatile boolean _cancelled = false;
+
+    // the BlockingCalls currently running on a thread, interrupted on cancel(true)
+    private final ConcurrentMap<Runnable, Thread> _runningTasks = new ConcurrentHashMap<Runnable, Thread>();
+    private PromiseScope _scope;
+
+    private CheckpointStore _checkpointStore;
+    private String _checkpointId;
+    // the number of stages completed, counted for the checkpoints only
+    private int _completedStages;
 
+    private int _priority;
+    private boolean _hasDeadline;
+    private long _deadline;
+
+
+    private Promise(Stage stage) {
+        _stage = stage;
+    }
 
-    private Promise(Call... tasks) {
-        _tasks = tasks;
+    /**
+     * creates a Promise with all its stages already known. Used by {@link PromiseTemplate}.
+     *
+     * @param stages the stages to process, the first one being triggered on {@link #start()}.
+     * @param input the parameters passed to the Calls of the first stage.
+     */
+    Promise(Stage[] stages, Object[] input) {
+        _stage = stages[0];
+        for (int i = 1; i < stages.length; i++) {
+            _queue.add(stages[i]);
+        }
+        if (input != null) {
+            _values.addAll(Arrays.asList(input));
+        }
     }
 
 
@@ -51,161 +95,657 @@ public class Promise {
      * Each {@link Call#call(Object...)} will get the results of the previous task as parameters.
      * The order of the parameters correlates with the order of the Calls when being passed
      * to {@link #when(Call[])} or preceding calls to <i>then</i>.
+     * If the Promise already resolved, the Calls are triggered right away and the Promise completes again once
+     * they are done, calling its handlers once more.
      *
      * @param calls a list of {@link Call} instances to trigger.
      * @return the Promise
      */
     public Promise then(Call... calls) {
-        _queue.add(calls);
-        synchronized (_fulfilled) {
-            if (_fulfilled.get()) {
-                // we have already a fulfilled stage.
-
-                // if we are already rejected, don't start the next stage
-                if (!_rejected) {
-                    // reset the state
-                    _fulfilled.set(_resolved = false);
-                    nextStage();
-                }
-            }
+        return then(Stage.of(calls));
+    }
+
+    /**
+     * Schedules a {@link CallGraph} after the current set of Calls have completed their tasks.
+     * The Calls of the graph without dependencies get the results of the previous task as parameters, all
+     * others are triggered as soon as their dependencies are resolved.
+     *
+     * @param graph the {@link CallGraph} to trigger.
+     * @return the Promise
+     */
+    public Promise then(CallGraph graph) {
+        return then(graph.toStage());
+    }
+
+    private Promise then(Stage stage) {
+        _queue.add(stage);
+
+        Outcome outcome = _outcome.get();
+        // if we are already resolved, continue with the added stage. Resetting the outcome makes sure
+        // only one thread does, see nextStage(). If we are already rejected, don't start the next stage.
+        if (outcome != null && !outcome.rejected && reopen(outcome)) {
+            nextStage(false);
         }
         return this;
     }
 
+    /**
+     * resets the resolved outcome, so the Promise can continue with an added stage. Rejecting it is possible
+     * again from now on.
+     *
+     * @return false if another thread reset it first.
+     */
+    private synchronized boolean reopen(Outcome outcome) {
+        if (!_outcome.compareAndSet(outcome, null)) {
+            return false;
+        }
+        _resolved = false;
+        return true;
+    }
+
     public static Promise when(Call... tasks) {
         return when(true, tasks);
     }
 
     public static Promise when(boolean startImmediately, Call... tasks) {
-        if (tasks == null || tasks.length == 0) {
-            throw new IllegalArgumentException("empty task list not allowed");
-        }
-        final Promise promise = new Promise(tasks);
+        return when(startImmediately, Stage.of(tasks));
+    }
+
+    /**
+     * Creates a Promise starting with a {@link CallGraph}.
+     *
+     * @param graph the {@link CallGraph} processed as first stage.
+     * @return the started Promise
+     */
+    public static Promise when(CallGraph graph) {
+        return when(true, graph);
+    }
+
+    public static Promise when(boolean startImmediately, CallGraph graph) {
+        return when(startImmediately, graph.toStage());
+    }
+
+    private static Promise when(boolean startImmediately, Stage stage) {
+        final Promise promise = new Promise(stage);
         if (startImmediately) {
             promise.start();
         }
         return promise;
     }
 
+    /**
+     * Creates a Promise resolved once all given Promises are resolved, without blocking any thread.
+     * Each value passed on is the Object[] of the corresponding Promise. The first rejected Promise rejects the
+     * created one with the same reason.
+     *
+     * @param promises the Promises to join. If there are none, the created Promise resolves right away without
+     *                 any values.
+     * @return the started Promise
+     */
+    public static Promise all(Promise... promises) {
+        if (promises == null) {
+            throw new IllegalArgumentException("empty task list not allowed");
+        }
+        if (promises.length == 0) {
+            // no stage at all, completes with the empty values
+            Promise promise = new Promise((Stage) null);
+            promise._started = true;
+            promise.nextStage(false);
+            return promise;
+        }
+        Call[] calls = new Call[promises.length];
+        for (int i = 0; i < promises.length; i++) {
+            calls[i] = new JoinCall(promises[i]);
+        }
+        return when(calls);
+    }
+
+    /**
+     * Maps all elements of a collection in parallel. The collection is split into one chunk per thread, each mapped
+     * by a single {@link BlockingCall}.
+     *
+     * @param items       the elements to map.
+     * @param mapper      the {@link Mapper} applied to each element.
+     * @param parallelism the number of chunks mapped at the same time.
+     * @return the started Promise, resolved with a List of the mapped values in the order of the collection.
+     */
+    public static <T, R> Promise map(Collection<T> items, Mapper<T, R> mapper, int parallelism) {
+        return MapReduce.map(items, mapper, parallelism);
+    }
+
+    /**
+     * Maps all elements of a collection in parallel and combines the mapped values, using one chunk per available
+     * processor. Each chunk is combined as soon as it is done, the mapped values are not kept.
+     *
+     * @param items    the elements to map.
+     * @param mapper   the {@link Mapper} applied to each element.
+     * @param combiner the {@link Combiner} reducing the mapped values.
+     * @return the started Promise, resolved with the combined value, or null if the collection is empty.
+     */
+    public static <T, R> Promise mapReduce(Collection<T> items, Mapper<T, R> mapper, Combiner<R> combiner) {
+        return MapReduce.mapReduce(items, mapper, combiner, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Waits until all given Promises are either resolved or rejected. Other than calling
+     * {@link #waitForCompletion()} on each of them, the completions are counted down by their handlers and only the
+     * waiting thread is woken up once the last one completed. The handlers are removed again when this method
+     * returns, so it can be called repeatedly for Promises still pending.
+     *
+     * @param promises the Promises to wait for.
+     * @param timeout  the maximum time to wait.
+     * @param unit     the {@link TimeUnit} of timeout.
+     * @return false if the timeout elapsed before all Promises completed.
+     * @throws InterruptedException if the waiting thread was interrupted.
+     */
+    public static boolean awaitAll(Collection<Promise> promises, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final AtomicInteger remaining = new AtomicInteger(promises.size());
+        final Thread waiter = Thread.currentThread();
+
+        Promise[] waited = promises.toArray(new Promise[promises.size()]);
+        Listener[] listeners = new Listener[waited.length];
+        for (int i = 0; i < waited.length; i++) {
+            listeners[i] = new Listener(null, null, new Countdown(remaining, waiter));
+            waited[i].addListener(listeners[i]);
+        }
+
+        try {
+            while (remaining.get() > 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(remaining, left);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            for (int i = 0; i < waited.length; i++) {
+                waited[i]._listeners.remove(listeners[i]);
+            }
+            // a handler already dispatched to the callback executor must not wake the thread up later on
+            remaining.set(-1);
+        }
+    }
+
 
-    synchronized
     protected void setResolved(Call call) {
-        ++_stageComplete;
+        List<Trigger> triggers = null;
+        boolean stageComplete;
+
+        synchronized (this) {
+            if (_stage == null) {
+                return;
+            }
+            ++_stageComplete;
+
+            final Call[] calls = _stage.calls;
+            int callIndex = call.getStageIndex();
+            if (callIndex >= 0 && callIndex < calls.length && calls[callIndex] == call) {
+                _values.set(callIndex, call.getResolvedValue());
 
-        int callIndex = Arrays.asList(_tasks).indexOf(call);
-        if (callIndex >= 0) {
-            _values.set(callIndex, call.getResolvedValue());
+                if (_stage.dependents != null && !_rejected) {
+                    triggers = collectDependents(callIndex);
+                }
+            }
+
+            stageComplete = !_rejected && _stageComplete == calls.length;
         }
 
-        if (!_rejected && _stageComplete == _tasks.length) {
-            nextStage();
+        // Calls are triggered outside of the lock, they may take a while or resolve synchronously
+        if (triggers != null) {
+            for (Trigger trigger : triggers) {
+                if (_rejected) {
+                    break;
+                }
+                triggerTask(trigger.call, trigger.index, trigger.params);
+            }
+        }
+        if (stageComplete) {
+            nextStage(true);
         }
     }
 
     /**
-     * @param rejectedReason the reason why a task failed.
+     * collects all Calls of a CallGraph stage which were only waiting for the given Call.
      */
-    synchronized
-    protected void setRejected(Throwable rejectedReason) {
-        if (_rejected) {
-            // already rejected, ignore the subsequent rejects
-            return;
+    private List<Trigger> collectDependents(int callIndex) {
+        final Stage stage = _stage;
+        int[] dependents = stage.dependents[callIndex];
+        List<Trigger> triggers = null;
+        for (int dependent : dependents) {
+            if (--_pending[dependent] == 0) {
+                int[] dependencies = stage.dependencies[dependent];
+                Object[] params = new Object[dependencies.length];
+                for (int j = 0; j < dependencies.length; j++) {
+                    params[j] = _values.get(dependencies[j]);
+                }
+                if (triggers == null) {
+                    triggers = new ArrayList<Trigger>(dependents.length);
+                }
+                triggers.add(new Trigger(stage.calls[dependent], dependent, params));
+            }
         }
+        return triggers;
+    }
 
-        _rejected = true;
-        _rejectedReason = rejectedReason;
+    /**
+     * @param rejectedReason the reason why a task failed.
+     * @return false if the Promise was already resolved or rejected.
+     */
+    protected boolean setRejected(Throwable rejectedReason) {
+        return setRejected(rejectedReason, false);
+    }
 
-        if (_rejectedHandler != null) {
-            try {
-                _rejectedHandler.accept(_rejectedReason);
-            } catch (Throwable e) {
-                e.printStackTrace();
+    private boolean setRejected(Throwable rejectedReason, boolean cancel) {
+        Outcome outcome;
+        synchronized (this) {
+            if (_rejected || _resolved) {
+                // already completed, ignore the subsequent rejects
+                return false;
             }
+            if (cancel) {
+                // visible to the handlers called below
+                _cancelled = true;
+            }
+
+            _rejected = true;
+            outcome = new Outcome(null, rejectedReason, true, ++_epoch);
         }
 
-        setFulfilled();
+        _outcome.set(outcome);
+        // the handlers are called without holding the lock
+        notifyListeners(outcome);
+        return true;
     }
 
-    private void runStage() {
+    /**
+     * sets up the current stage for being triggered. Has to be called holding the lock.
+     *
+     * @return the parameters for the Calls of the stage.
+     */
+    private Object[] prepareStage() {
+        final Stage stage = _stage;
         Object[] params = _values.toArray(new Object[_values.size()]);
-        _values.setSize(_tasks.length);
-        for (final Call task : _tasks) {
-            task.setPromise(this);
-            task.prepare();
-            task.triggerCall(params);
+        _values.setSize(stage.calls.length);
+
+        if (stage.dependencies == null) {
+            _pending = null;
+        } else {
+            _pending = new int[stage.calls.length];
+            for (int i = 0; i < _pending.length; i++) {
+                _pending[i] = stage.dependencies[i].length;
+            }
         }
+        return params;
     }
 
-    private void nextStage() {
-        _tasks = _queue.poll();
-        _stageComplete = 0;
-        if (_tasks == null) {
-            _resolved = true;
-            if (_resolvedHandler != null) {
-                try {
-                    _resolvedHandler.accept(_values.toArray(new Object[_values.size()]));
-                } catch (Throwable e) {
-                    e.printStackTrace();
+    private void triggerStage(Stage stage, Object[] params) {
+        final Call[] calls = stage.calls;
+        for (int i = 0; i < calls.length; i++) {
+            if (stage.dependencies == null || stage.dependencies[i].length == 0) {
+                triggerTask(calls[i], i, params);
+            }
+        }
+    }
+
+    private void triggerTask(Call task, int index, Object[] params) {
+        task.setPromise(this);
+        task.setStageIndex(index);
+        task.prepare();
+        task.triggerCall(params);
+    }
+
+    /**
+     * @param stageCompleted true if called because the current stage completed, false if the Promise is resumed.
+     */
+    private void nextStage(boolean stageCompleted) {
+        while (true) {
+            Stage stage;
+            Object[] params = null;
+            Outcome outcome = null;
+            int completedStages = 0;
+
+            synchronized (this) {
+                if (_rejected) {
+                    // e.g. cancelled while the last stage completed
+                    return;
+                }
+                if (stageCompleted) {
+                    completedStages = ++_completedStages;
+                }
+                stage = _stage = _queue.poll();
+                _stageComplete = 0;
+                if (stage != null) {
+                    params = prepareStage();
                 }
             }
-            setFulfilled();
-        } else {
-            runStage();
+
+            if (stage != null) {
+                // the values of the completed stage are the parameters of the next one
+                if (stageCompleted && !saveCheckpoint(completedStages, params)) {
+                    return;
+                }
+                triggerStage(stage, params);
+                return;
+            }
+
+            if (stageCompleted && !removeCheckpoint()) {
+                return;
+            }
+            synchronized (this) {
+                // resolving and rejecting exclude each other, the first one wins
+                if (_rejected) {
+                    return;
+                }
+                _resolved = true;
+                outcome = new Outcome(_values.toArray(new Object[_values.size()]), null, false, ++_epoch);
+            }
+            _outcome.set(outcome);
+            notifyListeners(outcome);
+
+            // a stage may have been added before the outcome was visible to then(). Whoever resets the outcome
+            // first continues with it.
+            if (_queue.isEmpty() || !reopen(outcome)) {
+                return;
+            }
+            stageCompleted = false;
         }
     }
 
-    private void setFulfilled() {
-        synchronized (_fulfilled) {
-            _fulfilled.set(true);
+    /**
+     * restores the values of the last completed stage and skips the stages completed before.
+     *
+     * @return false if there is no checkpoint, or if it couldn't be restored and the Promise is rejected.
+     */
+    private boolean restoreCheckpoint() {
+        Checkpoint checkpoint;
+        try {
+            checkpoint = _checkpointStore.load(_checkpointId);
+        } catch (IOException e) {
+            setRejected(e);
+            return false;
+        }
+        if (checkpoint == null) {
+            return false;
         }
 
-        if (_fulfilledRunnable != null) {
-            _fulfilledRunnable.run();
+        int completedStages = checkpoint.getCompletedStages();
+        if (completedStages <= 0 || completedStages > _queue.size() + 1) {
+            setRejected(new IllegalStateException("checkpoint " + _checkpointId + " doesn't match the chain"));
+            return false;
+        }
+
+        synchronized (this) {
+            _completedStages = completedStages;
+            // the current stage is the first completed one
+            for (int i = 1; i < completedStages; i++) {
+                _queue.poll();
+            }
+            _values.clear();
+            _values.addAll(Arrays.asList(checkpoint.getValues()));
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the checkpoint couldn't be saved and the Promise is rejected.
+     */
+    private boolean saveCheckpoint(int completedStages, Object[] values) {
+        if (_checkpointStore == null) {
+            return true;
+        }
+        try {
+            _checkpointStore.save(_checkpointId, new Checkpoint(completedStages, values));
+            return true;
+        } catch (IOException e) {
+            setRejected(e);
+            return false;
+        }
+    }
+
+    private boolean removeCheckpoint() {
+        if (_checkpointStore == null) {
+            return true;
+        }
+        try {
+            _checkpointStore.remove(_checkpointId);
+            return true;
+        } catch (IOException e) {
+            setRejected(e);
+            return false;
+        }
+    }
+
+    /**
+     * calls the handlers for the given outcome, the fulfilled handlers after all others.
+     */
+    private void notifyListeners(Outcome outcome) {
+        for (Listener listener : _listeners) {
+            if (!listener.isFulfilledListener()) {
+                dispatch(listener, outcome);
+            }
+        }
+        for (Listener listener : _listeners) {
+            if (listener.isFulfilledListener()) {
+                dispatch(listener, outcome);
+            }
         }
 
         synchronized (_completionSyncObject) {
+            _notifiedEpoch = Math.max(_notifiedEpoch, outcome.epoch);
             _completionSyncObject.notifyAll();
         }
     }
 
-    public Promise resolve(Result<Object[]> resultHandler) {
-        _resolvedHandler = resultHandler;
-        if (_resolved) {
-            try {
-                _resolvedHandler.accept(_values.toArray(new Object[_values.size()]));
-            } catch (Throwable e) {
-                e.printStackTrace();
+    private void dispatch(final Listener listener, final Outcome outcome) {
+        // the completing and the registering thread may both try to notify a listener
+        if (!listener.claim(outcome)) {
+            return;
+        }
+
+        final Executor executor = _callbackExecutor;
+        if (executor == null) {
+            listener.notify(outcome);
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                listener.notify(outcome);
             }
+        });
+    }
+
+    /**
+     * @return the number of handlers added.
+     */
+    int getListenerCount() {
+        return _listeners.size();
+    }
+
+    private Promise addListener(Listener listener) {
+        _listeners.add(listener);
+        // the outcome is read after adding the listener, so either we see it here or the completing
+        // thread sees the listener.
+        Outcome outcome = _outcome.get();
+        if (outcome != null) {
+            dispatch(listener, outcome);
         }
         return this;
     }
 
+    /**
+     * Adds a handler called with the resolved values of the last stage once all stages are resolved.
+     * Any number of handlers can be added. If the Promise is resolved already, the handler is called immediately.
+     *
+     * @param resultHandler the handler to add.
+     * @return the Promise
+     */
+    public Promise resolve(Result<Object[]> resultHandler) {
+        return addListener(new Listener(resultHandler, null, null));
+    }
+
+    /**
+     * Adds a handler called with the reason once a Call was rejected.
+     * Any number of handlers can be added. If the Promise is rejected already, the handler is called immediately.
+     *
+     * @param rejectedHandler the handler to add.
+     * @return the Promise
+     */
     public Promise reject(Result<Throwable> rejectedHandler) {
-        _rejectedHandler = rejectedHandler;
-        if (_rejected) {
-            try {
-                _rejectedHandler.accept(_rejectedReason);
-            } catch (Throwable e) {
-                e.printStackTrace();
+        return addListener(new Listener(null, rejectedHandler, null));
+    }
+
+    public Promise start() {
+        _started = true;
+        if (_cancelled) {
+            return this;
+        }
+        if (_checkpointStore != null) {
+            if (restoreCheckpoint()) {
+                // continue after the last completed stage
+                nextStage(false);
+                return this;
+            }
+            if (_rejected) {
+                return this;
             }
         }
+        Stage stage;
+        Object[] params;
+        synchronized (this) {
+            stage = _stage;
+            params = prepareStage();
+        }
+        triggerStage(stage, params);
         return this;
     }
 
-    public Promise start() {
-        _started = true;
-        runStage();
+    /**
+     * Makes the chain resumable. After each completed stage its values are saved to the {@link CheckpointStore}.
+     * When a Promise with the same stages and id is started later on, e.g. after a restart of the JVM, it continues
+     * with the stage following the last completed one. The checkpoint is removed once the Promise is resolved, a
+     * rejected Promise keeps it. A checkpoint which can't be saved or restored rejects the Promise.
+     *
+     * The stages have to be added before the Promise is started, e.g. by a {@link PromiseTemplate}.
+     *
+     * @param store the {@link CheckpointStore} keeping the checkpoints.
+     * @param id    the id of the chain, unique within the store.
+     * @return the Promise
+     */
+    public Promise checkpoint(CheckpointStore store, String id) {
+        if (_started) {
+            throw new IllegalStateException("checkpoint has to be set before the Promise is started");
+        }
+        _checkpointStore = store;
+        _checkpointId = id;
         return this;
     }
 
-    public Promise fulfilled(Runnable fulfilledRunnable) {
-        synchronized (_fulfilled) {
-            _fulfilledRunnable = fulfilledRunnable;
+    /**
+     * Cancels the Promise. It is rejected with a {@link CancellationException} and no further Calls are started,
+     * {@link BlockingCall}s still waiting for a thread are dropped.
+     *
+     * @param mayInterruptIfRunning true to interrupt the threads of the BlockingCalls currently running.
+     * @return false if the Promise was already resolved or rejected.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!setRejected(new CancellationException("promise cancelled"), true)) {
+            return false;
+        }
+
+        Stage stage;
+        synchronized (this) {
+            stage = _stage;
+        }
+        if (stage != null) {
+            for (Call call : stage.calls) {
+                call.cancelled();
+            }
+        }
 
-            if (_fulfilled.get()) {
-                _fulfilledRunnable.run();
+        if (mayInterruptIfRunning) {
+            for (Thread thread : _runningTasks.values()) {
+                thread.interrupt();
             }
         }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * assigns the Promise to the {@link PromiseScope} owning it. Has to be done before the Promise is started.
+     */
+    void setScope(PromiseScope scope) {
+        _scope = scope;
+    }
+
+    boolean isStarted() {
+        return _started;
+    }
+
+    /**
+     * called before a BlockingCall task is passed to the Executor.
+     */
+    void taskDispatched() {
+        if (_scope != null) {
+            _scope.taskDispatched();
+        }
+    }
+
+    /**
+     * called by a BlockingCall task once it got its thread.
+     *
+     * @return false if the Promise was cancelled and the task must not be performed anymore.
+     */
+    boolean taskStarted(Runnable task) {
+        if (_cancelled) {
+            return false;
+        }
+        _runningTasks.put(task, Thread.currentThread());
+        return true;
+    }
+
+    /**
+     * called by a BlockingCall task when it is done, or when it was never performed at all.
+     */
+    void taskFinished(Runnable task) {
+        if (_runningTasks.remove(task) != null && _cancelled) {
+            // the thread may have been interrupted by cancel(), don't pass that on to the next task
+            Thread.interrupted();
+        }
+        if (_scope != null) {
+            _scope.taskFinished();
+        }
+    }
+
+    /**
+     * Adds a handler called once the Promise is either resolved or rejected, after the resolve and reject handlers.
+     *
+     * @param fulfilledRunnable the handler to add.
+     * @return the Promise
+     */
+    public Promise fulfilled(Runnable fulfilledRunnable) {
+        return addListener(new Listener(null, null, fulfilledRunnable));
+    }
+
+    /**
+     * Specifies the {@link Executor} calling the resolve, reject and fulfilled handlers. By default they are called
+     * on the thread completing the Promise, which is usually a thread of the Executor of the Calls.
+     * Note that {@link #waitForCompletion()} may return before handlers called on another Executor are done.
+     *
+     * @param callbackExecutor the {@link Executor} for the handlers, or null to call them directly.
+     * @return the chained Promise
+     */
+    public Promise setCallbackExecutor(Executor callbackExecutor) {
+        _callbackExecutor = callbackExecutor;
         return this;
     }
 
@@ -213,6 +753,13 @@ public class Promise {
         if (_executor != null) {
             return _executor;
         }
+        return getDefaultExecutor();
+    }
+
+    /**
+     * @return the {@link Executor} of the {@link ExecutorProvider}, used if no Executor is set.
+     */
+    static Executor getDefaultExecutor() {
         return sExecutorProvider.getExecutor();
     }
 
@@ -221,6 +768,21 @@ public class Promise {
         Executor getExecutor();
     }
 
+    /**
+     * Sets the {@link Scheduler} used for delays and timeouts, e.g. a {@link VirtualScheduler} in tests.
+     * Caches, circuit breakers and bulkheads should be created after setting it, as they keep timestamps of the
+     * previous clock.
+     *
+     * @param scheduler the {@link Scheduler}, {@link Scheduler#SYSTEM} by default.
+     */
+    public static void setScheduler(@NotNull Scheduler scheduler) {
+        sScheduler = scheduler;
+    }
+
+    public static Scheduler getScheduler() {
+        return sScheduler;
+    }
+
     /**
      * Set the {@link ExecutorProvider} used to retrieve the {@link Executor} to use in case
      * no specific ExecutorService is set with {@link #setExecutor(Executor)}.
@@ -242,24 +804,16 @@ public class Promise {
             throw new IllegalStateException("Promise not started yet. Call start() before waitForCompletion().");
         }
 
-        synchronized (_fulfilled) {
-            if (_fulfilled.get()) {
-                return;
-            }
-        }
-        while (true) {
-            synchronized (_completionSyncObject) {
+        synchronized (_completionSyncObject) {
+            // the outcome is visible before the handlers are notified, wait for them as well
+            Outcome outcome;
+            while ((outcome = _outcome.get()) == null || _notifiedEpoch < outcome.epoch) {
                 try {
                     _completionSyncObject.wait();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
             }
-            synchronized (_fulfilled) {
-                if (_fulfilled.get()) {
-                    return;
-                }
-            }
         }
     }
 
@@ -274,4 +828,172 @@ public class Promise {
         _executor = executor;
         return this;
     }
+
+    /**
+     * Specifies the priority of the {@link BlockingCall}s of this Promise. It is used by a {@link PriorityExecutor}
+     * to order the waiting Calls. The priority set on a Call with {@link Call#priority(int)} takes precedence.
+     *
+     * @param priority the priority, higher values run first. Defaults to 0.
+     * @return the chained Promise
+     */
+    public Promise setPriority(int priority) {
+        _priority = priority;
+        return this;
+    }
+
+    public int getPriority() {
+        return _priority;
+    }
+
+    /**
+     * Specifies a deadline for the Calls of this Promise. A Call not started before the deadline is rejected with a
+     * {@link TimeoutException} instead of being performed. The deadline set on a Call with
+     * {@link Call#deadline(long, TimeUnit)} takes precedence.
+     *
+     * @param timeout the time from now on the Calls have to be started in.
+     * @param unit    the {@link TimeUnit} of timeout.
+     * @return the chained Promise
+     */
+    public Promise setDeadline(long timeout, TimeUnit unit) {
+        _deadline = getScheduler().nanoTime() + unit.toNanos(timeout);
+        _hasDeadline = true;
+        return this;
+    }
+
+    boolean hasDeadline() {
+        return _hasDeadline;
+    }
+
+    long getDeadline() {
+        return _deadline;
+    }
+
+    /**
+     * the result of a completed Promise.
+     */
+    private static final class Outcome {
+        final Object[] values;
+        final Throwable reason;
+        final boolean rejected;
+        final int epoch;
+
+        Outcome(Object[] values, Throwable reason, boolean rejected, int epoch) {
+            this.values = values;
+            this.reason = reason;
+            this.rejected = rejected;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * a handler added with {@link #resolve(Result)}, {@link #reject(Result)} or {@link #fulfilled(Runnable)}.
+     */
+    private static final class Listener {
+        private final Result<Object[]> _resolvedHandler;
+        private final Result<Throwable> _rejectedHandler;
+        private final Runnable _fulfilledRunnable;
+        // the epoch of the last outcome this listener was notified of
+        private final AtomicInteger _epoch = new AtomicInteger();
+
+        Listener(Result<Object[]> resolvedHandler, Result<Throwable> rejectedHandler, Runnable fulfilledRunnable) {
+            _resolvedHandler = resolvedHandler;
+            _rejectedHandler = rejectedHandler;
+            _fulfilledRunnable = fulfilledRunnable;
+        }
+
+        boolean isFulfilledListener() {
+            return _fulfilledRunnable != null;
+        }
+
+        /**
+         * @return true if the caller is the one to notify the listener of the outcome.
+         */
+        boolean claim(Outcome outcome) {
+            while (true) {
+                int epoch = _epoch.get();
+                if (epoch >= outcome.epoch) {
+                    return false;
+                }
+                if (_epoch.compareAndSet(epoch, outcome.epoch)) {
+                    return true;
+                }
+            }
+        }
+
+        void notify(Outcome outcome) {
+            try {
+                if (_fulfilledRunnable != null) {
+                    _fulfilledRunnable.run();
+                } else if (outcome.rejected) {
+                    if (_rejectedHandler != null) {
+                        _rejectedHandler.accept(outcome.reason);
+                    }
+                } else if (_resolvedHandler != null) {
+                    _resolvedHandler.accept(outcome.values);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * resolves with the values of another Promise, see {@link #all(Promise...)}.
+     */
+    private static final class JoinCall extends AsyncCall<Object[]> {
+        private final Promise _source;
+
+        JoinCall(Promise source) {
+            _source = source;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            _source.resolve(new Result<Object[]>() {
+                public void accept(Object[] values) {
+                    resolve(values);
+                }
+            }).reject(new Result<Throwable>() {
+                public void accept(Throwable reason) {
+                    reject(reason);
+                }
+            });
+        }
+    }
+
+    /**
+     * counts down the first completion of a Promise, see {@link #awaitAll(Collection, long, TimeUnit)}.
+     */
+    private static final class Countdown implements Runnable {
+        private final AtomicInteger _remaining;
+        private final Thread _waiter;
+        // only the first completion counts, see then(Call...)
+        private final AtomicBoolean _done = new AtomicBoolean();
+
+        Countdown(AtomicInteger remaining, Thread waiter) {
+            _remaining = remaining;
+            _waiter = waiter;
+        }
+
+        public void run() {
+            if (_done.compareAndSet(false, true) && _remaining.decrementAndGet() == 0) {
+                LockSupport.unpark(_waiter);
+            }
+        }
+    }
+
+    /**
+     * a Call of a CallGraph stage ready to be triggered.
+     */
+    private static final class Trigger {
+        final Call call;
+        final int index;
+        final Object[] params;
+
+        Trigger(Call call, int index, Object[] params) {
+            this.call = call;
+            this.index = index;
+            this.params = params;
+        }
+    }
 }
@@ -0,0 +1,217 @@
+package com.mecasa.jspromise;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns a group of Promises started for the same purpose, e.g. the handling of one request.
+ *
+ * <pre>
+ *     PromiseScope scope = new PromiseScope();
+ *     try {
+ *         scope.when(loadUserCall);
+ *         scope.when(loadOrdersCall).then(sumCall);
+ *         scope.join();
+ *     } finally {
+ *         scope.close();
+ *     }
+ * </pre>
+ *
+ * The first rejected Promise cancels all others of the scope, see {@link Promise#cancel(boolean)}.
+ * {@link #join()} waits for all Promises to complete, {@link #close()} cancels the remaining ones and waits until
+ * none of their {@link BlockingCall}s is running anymore. AsyncCalls can't be tracked, they are only prevented from
+ * being retried.
+ *
+ * Only one thread may wait for a scope at a time.
+ */
+public class PromiseScope {
+    private final List<Promise> _promises = new ArrayList<Promise>();
+    // the Promises not fulfilled yet
+    private final AtomicInteger _pending = new AtomicInteger();
+    // the BlockingCalls passed to an Executor and not finished yet
+    private final AtomicInteger _tasks = new AtomicInteger();
+    private final AtomicReference<Throwable> _failure = new AtomicReference<Throwable>();
+    private volatile Thread _waiter;
+    private boolean _closed;
+
+    /**
+     * Creates a Promise owned by this scope and starts it.
+     *
+     * @param calls the {@link Call}s of the first stage.
+     * @return the started Promise
+     */
+    public Promise when(Call... calls) {
+        return add(Promise.when(false, calls)).start();
+    }
+
+    /**
+     * Creates a Promise owned by this scope starting with a {@link CallGraph} and starts it.
+     *
+     * @param graph the {@link CallGraph} of the first stage.
+     * @return the started Promise
+     */
+    public Promise when(CallGraph graph) {
+        return add(Promise.when(false, graph)).start();
+    }
+
+    /**
+     * Adds a Promise created elsewhere, e.g. by {@link PromiseTemplate#create(Object...)}.
+     *
+     * @param promise the Promise, not started yet.
+     * @return the Promise, call {@link Promise#start()} to trigger it.
+     */
+    public Promise add(Promise promise) {
+        if (promise.isStarted()) {
+            throw new IllegalArgumentException("promise already started");
+        }
+
+        boolean cancel;
+        synchronized (this) {
+            if (_closed) {
+                throw new IllegalStateException("scope already closed");
+            }
+            _promises.add(promise);
+            _pending.incrementAndGet();
+            cancel = _failure.get() != null;
+        }
+
+        promise.setScope(this);
+        final AtomicBoolean done = new AtomicBoolean();
+        promise.reject(new Result<Throwable>() {
+            public void accept(Throwable reason) {
+                fail(reason);
+            }
+        }).fulfilled(new Runnable() {
+            public void run() {
+                // only the first completion counts, see Promise#then(Call...)
+                if (done.compareAndSet(false, true) && _pending.decrementAndGet() == 0) {
+                    wakeUp();
+                }
+            }
+        });
+
+        if (cancel) {
+            promise.cancel(true);
+        }
+        return promise;
+    }
+
+    /**
+     * Waits until all Promises of the scope are resolved, or until the first of them was rejected and all others
+     * were cancelled.
+     *
+     * @throws ExecutionException   if a Promise was rejected, with the reason of the first rejection as cause.
+     * @throws InterruptedException if the waiting thread was interrupted.
+     */
+    public void join() throws InterruptedException, ExecutionException {
+        startWaiting();
+        try {
+            while (_pending.get() > 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            _waiter = null;
+        }
+
+        Throwable failure = _failure.get();
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+    }
+
+    /**
+     * Cancels all Promises of the scope not completed yet and waits until none of their BlockingCalls is running
+     * anymore. No Promises can be added afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+        }
+
+        if (_pending.get() > 0 || _tasks.get() > 0) {
+            fail(new CancellationException("scope closed"));
+        }
+
+        boolean interrupted = false;
+        startWaiting();
+        try {
+            while (_pending.get() > 0 || _tasks.get() > 0) {
+                LockSupport.park(this);
+                // keep on waiting, the tasks may still be using resources released by the caller afterwards
+                interrupted |= Thread.interrupted();
+            }
+        } finally {
+            _waiter = null;
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of Promises not completed yet.
+     */
+    public int getPendingCount() {
+        return _pending.get();
+    }
+
+    /**
+     * @return the reason of the first rejected Promise, or null if none was rejected.
+     */
+    public Throwable getFailure() {
+        return _failure.get();
+    }
+
+    void taskDispatched() {
+        _tasks.incrementAndGet();
+    }
+
+    void taskFinished() {
+        if (_tasks.decrementAndGet() == 0) {
+            wakeUp();
+        }
+    }
+
+    private void fail(Throwable reason) {
+        if (!_failure.compareAndSet(null, reason)) {
+            // the siblings are cancelled already
+            return;
+        }
+
+        Promise[] promises;
+        synchronized (this) {
+            promises = _promises.toArray(new Promise[_promises.size()]);
+        }
+        for (Promise promise : promises) {
+            promise.cancel(true);
+        }
+    }
+
+    /**
+     * registers the current thread to be woken up. Done before checking the counters, so a change after the check
+     * leaves the permit and park() returns immediately.
+     */
+    private synchronized void startWaiting() {
+        if (_waiter != null) {
+            throw new IllegalStateException("another thread is waiting for the scope");
+        }
+        _waiter = Thread.currentThread();
+    }
+
+    private void wakeUp() {
+        Thread waiter = _waiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.mecasa.jspromise;
+
+import java.util.Arrays;
+
+/**
+ * A reusable definition of a Promise chain.
+ *
+ * The stages are captured and validated once. Each call to {@link #start(Object...)} or {@link #create(Object...)}
+ * creates a new {@link Promise} running its own copies of the Calls, so a template can be shared between threads
+ * and executed as often as needed:
+ *
+ * <pre>
+ *     PromiseTemplate template = PromiseTemplate.when(loadCall).then(parseCall, validateCall);
+ *     ...
+ *     template.start(request).resolve(resultHandler);
+ * </pre>
+ *
+ * The Calls passed to the template serve as prototypes only and are never triggered themselves. Each Promise works
+ * on a shallow copy of them, see {@link Call#copy()}.
+ */
+public final class PromiseTemplate {
+    private final Stage[] _stages;
+
+    private PromiseTemplate(Stage[] stages) {
+        _stages = stages;
+    }
+
+    /**
+     * Creates a template with its first stage.
+     *
+     * @param calls the {@link Call}s of the first stage.
+     * @return the new template
+     */
+    public static PromiseTemplate when(Call... calls) {
+        return new PromiseTemplate(new Stage[]{Stage.of(validate(calls))});
+    }
+
+    /**
+     * Creates a template starting with a {@link CallGraph}.
+     *
+     * @param graph the {@link CallGraph} of the first stage.
+     * @return the new template
+     */
+    public static PromiseTemplate when(CallGraph graph) {
+        return new PromiseTemplate(new Stage[]{graph.toStage()});
+    }
+
+    /**
+     * Creates a new template with an additional stage. This template is not modified.
+     *
+     * @param calls the {@link Call}s of the added stage.
+     * @return the new template
+     */
+    public PromiseTemplate then(Call... calls) {
+        return then(Stage.of(validate(calls)));
+    }
+
+    /**
+     * Creates a new template with an additional {@link CallGraph} stage. This template is not modified.
+     *
+     * @param graph the {@link CallGraph} of the added stage.
+     * @return the new template
+     */
+    public PromiseTemplate then(CallGraph graph) {
+        return then(graph.toStage());
+    }
+
+    private PromiseTemplate then(Stage stage) {
+        Stage[] stages = Arrays.copyOf(_stages, _stages.length + 1);
+        stages[_stages.length] = stage;
+        return new PromiseTemplate(stages);
+    }
+
+    /**
+     * Creates a new Promise for this chain and starts it.
+     *
+     * @param input the parameters passed to the Calls of the first stage.
+     * @return the started Promise
+     */
+    public Promise start(Object... input) {
+        return create(input).start();
+    }
+
+    /**
+     * Creates a new Promise for this chain without starting it.
+     *
+     * @param input the parameters passed to the Calls of the first stage.
+     * @return the Promise, call {@link Promise#start()} to trigger it.
+     */
+    public Promise create(Object... input) {
+        Stage[] stages = new Stage[_stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = _stages[i].copy();
+        }
+        return new Promise(stages, input);
+    }
+
+    /**
+     * @return the number of stages of this chain.
+     */
+    public int getStageCount() {
+        return _stages.length;
+    }
+
+    private static Call[] validate(Call[] calls) {
+        if (calls == null) {
+            throw new IllegalArgumentException("empty task list not allowed");
+        }
+        for (Call call : calls) {
+            if (call == null) {
+                throw new IllegalArgumentException("null task not allowed");
+            }
+        }
+        return calls.clone();
+    }
+}
@@ -0,0 +1,28 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The clock and timer used for retry delays, deadlines, batching delays and the time based state of caches,
+ * circuit breakers and bulkheads. See {@link Promise#setScheduler(Scheduler)}.
+ */
+public interface Scheduler {
+    /**
+     * The real time, with the delayed tasks performed by a single background thread.
+     */
+    Scheduler SYSTEM = new SystemScheduler();
+
+    /**
+     * @return the current time in nanoseconds, only meaningful relative to other values of the same Scheduler.
+     */
+    long nanoTime();
+
+    /**
+     * Performs a task after a delay. The task must not block, it is supposed to trigger further work only.
+     *
+     * @param task  the task to perform.
+     * @param delay the delay.
+     * @param unit  the {@link TimeUnit} of delay.
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit);
+}
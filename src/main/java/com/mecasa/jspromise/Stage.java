@@ -0,0 +1,65 @@
+package com.mecasa.jspromise;
+
+/**
+ * A single stage of a Promise chain.
+ *
+ * A plain stage triggers all its Calls at once with the values of the previous stage. A stage created from a
+ * {@link CallGraph} additionally knows which Calls each Call depends on: only Calls without dependencies are
+ * triggered at the start, all others as soon as the Calls they depend on are resolved.
+ */
+final class Stage {
+    final Call[] calls;
+    // per Call the indices of the Calls it waits for, null for a plain stage
+    final int[][] dependencies;
+    // per Call the indices of the Calls waiting for it, null for a plain stage
+    final int[][] dependents;
+
+    Stage(Call[] calls) {
+        this(calls, null);
+    }
+
+    Stage(Call[] calls, int[][] dependencies) {
+        this.calls = calls;
+        this.dependencies = dependencies;
+
+        if (dependencies == null) {
+            dependents = null;
+            return;
+        }
+
+        int[] counts = new int[calls.length];
+        for (int[] callDependencies : dependencies) {
+            for (int dependency : callDependencies) {
+                ++counts[dependency];
+            }
+        }
+        dependents = new int[calls.length][];
+        for (int i = 0; i < calls.length; i++) {
+            dependents[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < calls.length; i++) {
+            for (int dependency : dependencies[i]) {
+                dependents[dependency][counts[dependency]++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return a Stage with the same structure working on copies of the Calls, see {@link Call#copy()}.
+     */
+    Stage copy() {
+        Call[] copies = new Call[calls.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = calls[i].copy();
+        }
+        return new Stage(copies, dependencies);
+    }
+
+    static Stage of(Call[] calls) {
+        if (calls == null || calls.length == 0) {
+            throw new IllegalArgumentException("empty task list not allowed");
+        }
+        return new Stage(calls);
+    }
+}
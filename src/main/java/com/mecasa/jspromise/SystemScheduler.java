@@ -0,0 +1,20 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the default {@link Scheduler}, see {@link Scheduler#SYSTEM}.
+ */
+final class SystemScheduler implements Scheduler {
+    private final ScheduledExecutorService _service = Executors.newSingleThreadScheduledExecutor();
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        _service.schedule(task, delay, unit);
+    }
+}
@@ -0,0 +1,137 @@
+package com.mecasa.jspromise;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Scheduler} with a virtual clock, only advancing when told to. Timing behaviour like retry delays,
+ * deadlines or open circuit breakers can be tested deterministically and without waiting:
+ *
+ * <pre>
+ *     VirtualScheduler scheduler = new VirtualScheduler();
+ *     Promise.setScheduler(scheduler);
+ *     Promise promise = Promise.when(false, call.retriesWithDelay(100, 1, TimeUnit.HOURS))
+ *             .setExecutor(scheduler).start();
+ *     scheduler.advance(100, TimeUnit.HOURS);
+ * </pre>
+ *
+ * The VirtualScheduler is an {@link Executor} as well. Tasks passed to it are performed in order on the thread
+ * advancing the clock, so a Promise using it runs completely on the test thread.
+ */
+public class VirtualScheduler implements Scheduler, Executor {
+    private final PriorityQueue<Task> _tasks = new PriorityQueue<Task>();
+    private long _now;
+    private long _sequence;
+
+    public synchronized long nanoTime() {
+        return _now;
+    }
+
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        synchronized (this) {
+            _tasks.add(new Task(task, _now + Math.max(0, unit.toNanos(delay)), _sequence++));
+        }
+    }
+
+    /**
+     * Queues a task to be performed at the current time, see {@link #runPending()}.
+     *
+     * @param task the task to perform.
+     */
+    public void execute(Runnable task) {
+        schedule(task, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Performs all tasks due at the current time, including the ones they queue for the current time.
+     *
+     * @return the number of tasks performed.
+     */
+    public int runPending() {
+        return advance(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Advances the clock, performing all tasks due in the meantime at their time. Tasks queued by these tasks
+     * are performed as well, if they are due before the end of the period.
+     *
+     * @param time the time to advance the clock by.
+     * @param unit the {@link TimeUnit} of time.
+     * @return the number of tasks performed.
+     */
+    public int advance(long time, TimeUnit unit) {
+        long end;
+        synchronized (this) {
+            end = _now + unit.toNanos(time);
+        }
+
+        int count = 0;
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = _tasks.peek();
+                if (task == null || task.time - end > 0) {
+                    // a task may have advanced the clock further already
+                    _now = later(_now, end);
+                    return count;
+                }
+                _tasks.poll();
+                _now = later(_now, task.time);
+            }
+            // performed outside of the lock, the task may schedule further tasks
+            task.runnable.run();
+            count++;
+        }
+    }
+
+    /**
+     * Performs all queued tasks, advancing the clock to the time of each one, until no task is left.
+     *
+     * @return the number of tasks performed.
+     */
+    public int runAll() {
+        int count = 0;
+        while (true) {
+            long delay;
+            synchronized (this) {
+                Task task = _tasks.peek();
+                if (task == null) {
+                    return count;
+                }
+                delay = task.time - _now;
+            }
+            count += advance(delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static long later(long time, long other) {
+        return other - time > 0 ? other : time;
+    }
+
+    /**
+     * @return the number of tasks waiting to be performed.
+     */
+    public synchronized int getQueuedCount() {
+        return _tasks.size();
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long time;
+        final long sequence;
+
+        Task(Runnable runnable, long time, long sequence) {
+            this.runnable = runnable;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return time - other.time < 0 ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
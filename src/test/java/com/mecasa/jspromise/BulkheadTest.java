@@ -0,0 +1,197 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class BulkheadTest {
+
+    private static class SlowCall extends BlockingCall<String> {
+        private final AtomicInteger _running;
+        private final AtomicInteger _maxRunning;
+
+        SlowCall(AtomicInteger running, AtomicInteger maxRunning) {
+            _running = running;
+            _maxRunning = maxRunning;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            int running = _running.incrementAndGet();
+            synchronized (_maxRunning) {
+                _maxRunning.set(Math.max(running, _maxRunning.get()));
+            }
+            Thread.sleep(50);
+            _running.decrementAndGet();
+            resolve("done");
+        }
+    }
+
+    /**
+     * takes the given virtual time to complete, performing the Calls started meanwhile.
+     */
+    private static class LatencyCall extends BlockingCall<String> {
+        private final VirtualScheduler _scheduler;
+        private final long _latencyMillis;
+        private final boolean _success;
+
+        LatencyCall(VirtualScheduler scheduler, long latencyMillis, boolean success) {
+            _scheduler = scheduler;
+            _latencyMillis = latencyMillis;
+            _success = success;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            _scheduler.advance(_latencyMillis, TimeUnit.MILLISECONDS);
+            if (!_success) {
+                throw new IllegalStateException("failed");
+            }
+            resolve("done");
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("slow", 2, 10, Executors.newFixedThreadPool(8));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        Promise[] promises = new Promise[6];
+        for (int i = 0; i < promises.length; i++) {
+            promises[i] = Promise.when(new SlowCall(running, maxRunning).bulkhead(bulkhead));
+        }
+        for (Promise promise : promises) {
+            promise.waitForCompletion();
+        }
+
+        assertEquals(2, maxRunning.get());
+        assertEquals(0, bulkhead.getActiveCount());
+        assertEquals(0, bulkhead.getQueuedCount());
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("slow", 1, 1, Executors.newFixedThreadPool(2));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise promise1 = Promise.when(new SlowCall(running, maxRunning).bulkhead(bulkhead));
+        Promise promise2 = Promise.when(new SlowCall(running, maxRunning).bulkhead(bulkhead));
+        Promise promise3 = Promise.when(new SlowCall(running, maxRunning).bulkhead(bulkhead)).reject(rejectCallback);
+
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        promise1.waitForCompletion();
+        promise2.waitForCompletion();
+        promise3.waitForCompletion();
+    }
+
+    @Test
+    public void testDeepQueue() throws Exception {
+        Bulkhead bulkhead = new Bulkhead("sync", 1, 20000);
+        AsyncCall<String> first = new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                // holds the only permit until resolved below
+            }
+        };
+        Promise.when(first.bulkhead(bulkhead));
+
+        // all resolving synchronously once they got the permit
+        AtomicInteger performed = new AtomicInteger();
+        for (int i = 0; i < 20000; i++) {
+            Promise.when(new TestCalls.CountingCall(performed, new AtomicInteger()).bulkhead(bulkhead));
+        }
+        assertEquals(20000, bulkhead.getQueuedCount());
+
+        first.resolve("done");
+        assertEquals(20000, performed.get());
+        assertEquals(0, bulkhead.getActiveCount());
+        assertEquals(0, bulkhead.getQueuedCount());
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        Bulkhead bulkhead = Bulkhead.register(new Bulkhead("registered", 1, 0));
+        assertTrue(Bulkhead.get("registered") == bulkhead);
+
+        Promise.when(BlockingCall.wrap(mock(Runnable.class)).bulkhead("registered")).waitForCompletion();
+        assertEquals(0, bulkhead.getActiveCount());
+
+        try {
+            BlockingCall.wrap(mock(Runnable.class)).bulkhead("unknown");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        VirtualScheduler scheduler = new VirtualScheduler();
+        Promise.setScheduler(scheduler);
+        try {
+            AdaptiveLimiter limiter = new AdaptiveLimiter("adaptive", 4, 1, 10, 0, scheduler);
+            scheduler.advance(5, TimeUnit.MILLISECONDS);
+
+            Promise.when(new LatencyCall(scheduler, 1, true).bulkhead(limiter));
+            scheduler.runPending();
+            // not used at all, so no reason to increase the limit
+            assertEquals(4, limiter.getMaxConcurrentCalls());
+
+            // congestion
+            Promise.when(new LatencyCall(scheduler, 3, true).bulkhead(limiter));
+            scheduler.runPending();
+            assertEquals(3, limiter.getMaxConcurrentCalls());
+
+            // the second Call completes while the first one is still running, which was started before the
+            // decrease caused by the second one
+            Promise.when(new LatencyCall(scheduler, 3, true).bulkhead(limiter));
+            Promise.when(new LatencyCall(scheduler, 3, false).bulkhead(limiter));
+            scheduler.runPending();
+            assertEquals(2, limiter.getMaxConcurrentCalls());
+
+            Promise.when(new LatencyCall(scheduler, 1, false).bulkhead(limiter));
+            scheduler.runPending();
+            assertEquals(1, limiter.getMaxConcurrentCalls());
+
+            // the limit is used by the only Call
+            Promise.when(new LatencyCall(scheduler, 1, true).bulkhead(limiter));
+            scheduler.runPending();
+            assertEquals(2, limiter.getMaxConcurrentCalls());
+            assertEquals(0, limiter.getActiveCount());
+        } finally {
+            Promise.setScheduler(Scheduler.SYSTEM);
+        }
+    }
+
+    @Test
+    public void testOpenCircuitNotQueued() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 1, 100, 1, TimeUnit.MINUTES);
+        Promise.when(new TestCalls.CountingCall(1).circuitBreaker(breaker));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Bulkhead bulkhead = new Bulkhead("service", 1, 5);
+        // occupies the only slot
+        Promise.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+            }
+        }.bulkhead(bulkhead));
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(new TestCalls.CountingCall(0).circuitBreaker(breaker).bulkhead(bulkhead)).reject(rejectCallback);
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        assertEquals(0, bulkhead.getQueuedCount());
+    }
+}
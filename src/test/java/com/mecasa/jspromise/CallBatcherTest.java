@@ -0,0 +1,127 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CallBatcherTest {
+
+    private static class SquareBatcher extends CallBatcher<Integer, Integer> {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger keys = new AtomicInteger();
+
+        SquareBatcher(int maxBatchSize, long maxDelay, TimeUnit unit) {
+            super(maxBatchSize, maxDelay, unit);
+        }
+
+        @Override
+        protected Map<Integer, Integer> call(Set<Integer> keys) throws Throwable {
+            batches.incrementAndGet();
+            this.keys.addAndGet(keys.size());
+            Map<Integer, Integer> values = new HashMap<Integer, Integer>();
+            for (Integer key : keys) {
+                values.put(key, key * key);
+            }
+            return values;
+        }
+    }
+
+    @Test
+    public void testBatchBySize() throws Exception {
+        SquareBatcher batcher = new SquareBatcher(4, 1, TimeUnit.MINUTES);
+
+        Result<Object[]> result = mockResultCallback();
+        Promise promise = Promise.when(new BatchingCall<Integer, Integer>(batcher, 1),
+                new BatchingCall<Integer, Integer>(batcher, 2),
+                new BatchingCall<Integer, Integer>(batcher, 2),
+                new BatchingCall<Integer, Integer>(batcher, 3))
+                .resolve(result);
+        promise.waitForCompletion();
+
+        verify(result).accept(new Object[]{1, 4, 4, 9});
+        assertEquals(1, batcher.batches.get());
+        // duplicate keys are requested once
+        assertEquals(3, batcher.keys.get());
+    }
+
+    @Test
+    public void testBatchByDelay() throws Exception {
+        SquareBatcher batcher = new SquareBatcher(100, 20, TimeUnit.MILLISECONDS);
+
+        Promise promise1 = Promise.when(new BatchingCall<Integer, Integer>(batcher, 2));
+        Promise promise2 = Promise.when(new BatchingCall<Integer, Integer>(batcher, 3));
+        promise1.waitForCompletion();
+        promise2.waitForCompletion();
+
+        assertEquals(1, batcher.batches.get());
+    }
+
+    @Test
+    public void testKeyFromParameters() throws Exception {
+        SquareBatcher batcher = new SquareBatcher(1, 1, TimeUnit.MINUTES);
+
+        Result<Object[]> result = mockResultCallback();
+        Promise.when(new AsyncCall<Integer>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(5);
+            }
+        }).then(new BatchingCall<Integer, Integer>(batcher, null) {
+            @Override
+            protected Integer getKey(Object... params) {
+                return (Integer) params[0];
+            }
+        }).resolve(result).waitForCompletion();
+
+        verify(result).accept(new Object[]{25});
+    }
+
+    @Test
+    public void testBatchRejected() throws Exception {
+        CallBatcher<Integer, Integer> batcher = new CallBatcher<Integer, Integer>(2, 1, TimeUnit.MINUTES) {
+            @Override
+            protected Map<Integer, Integer> call(Set<Integer> keys) throws Throwable {
+                throw new IllegalStateException();
+            }
+        };
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(new BatchingCall<Integer, Integer>(batcher, 1),
+                new BatchingCall<Integer, Integer>(batcher, 2))
+                .reject(rejectCallback)
+                .waitForCompletion();
+
+        verify(rejectCallback).accept(any(IllegalStateException.class));
+    }
+
+    @Test
+    public void testExecutorRefusesBatch() throws Exception {
+        SquareBatcher batcher = new SquareBatcher(2, 1, TimeUnit.MINUTES);
+        batcher.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("shut down");
+            }
+        });
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(new BatchingCall<Integer, Integer>(batcher, 1),
+                new BatchingCall<Integer, Integer>(batcher, 2))
+                .reject(rejectCallback)
+                .waitForCompletion();
+
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        assertEquals(0, batcher.batches.get());
+    }
+}
@@ -0,0 +1,90 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CallCacheTest {
+
+    private static class LookupCall extends BlockingCall<String> {
+        private final AtomicInteger _counter;
+
+        LookupCall(AtomicInteger counter) {
+            _counter = counter;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            _counter.incrementAndGet();
+            resolve("value" + params[0]);
+        }
+    }
+
+    @Test
+    public void testCacheHit() throws Exception {
+        CallCache cache = new CallCache(1, TimeUnit.MINUTES, 10);
+        AtomicInteger counter = new AtomicInteger();
+        PromiseTemplate template = PromiseTemplate.when(new LookupCall(counter).cached(cache));
+
+        template.start(1).waitForCompletion();
+        assertEquals(1, counter.get());
+
+        // a hit must be resolved without using the executor at all
+        Executor executor = mock(Executor.class);
+        Result<Object[]> result = mockResultCallback();
+        template.create(1).setExecutor(executor).resolve(result).start();
+        verify(executor, never()).execute(any(Runnable.class));
+        verify(result).accept(new Object[]{"value1"});
+
+        template.start(2).waitForCompletion();
+        assertEquals(2, counter.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testRejectedNotCached() throws Exception {
+        CallCache cache = new CallCache(1, TimeUnit.MINUTES, 10);
+        Promise.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                reject(new Exception());
+            }
+        }.cached(cache)).waitForCompletion();
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        CallCache cache = new CallCache(50, TimeUnit.MILLISECONDS, 10);
+        cache.put("key", "value");
+        assertEquals("value", cache.get("key").value);
+        Thread.sleep(60);
+        assertEquals(null, cache.get("key"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        CallCache cache = new CallCache(1, TimeUnit.MINUTES, 2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        // touch a so b is the least recently used entry
+        cache.get("a");
+        cache.put("c", 3);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.get("a") != null);
+        assertEquals(null, cache.get("b"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+}
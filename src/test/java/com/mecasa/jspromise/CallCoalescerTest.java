@@ -0,0 +1,102 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CallCoalescerTest {
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        CallCoalescer coalescer = new CallCoalescer();
+        PromiseTemplate template = PromiseTemplate.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                counter.incrementAndGet();
+                Thread.sleep(100);
+                resolve("value" + params[0]);
+            }
+        }.coalesced(coalescer));
+
+        Promise[] promises = new Promise[10];
+        Result<Object[]> result = mockResultCallback();
+        for (int i = 0; i < promises.length; i++) {
+            promises[i] = template.start(1).resolve(result);
+        }
+        for (Promise promise : promises) {
+            promise.waitForCompletion();
+        }
+
+        assertEquals(1, counter.get());
+        assertEquals(9, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getInFlightCount());
+        verify(result, times(10)).accept(new Object[]{"value1"});
+    }
+
+    @Test
+    public void testCoalescedReject() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        CallCoalescer coalescer = new CallCoalescer();
+        PromiseTemplate template = PromiseTemplate.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                counter.incrementAndGet();
+                Thread.sleep(50);
+                reject(new IllegalStateException());
+            }
+        }.coalesced(coalescer).retries(1));
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise promise1 = template.start(1).reject(rejectCallback);
+        Promise promise2 = template.start(1).reject(rejectCallback);
+        promise1.waitForCompletion();
+        promise2.waitForCompletion();
+
+        // the retry belongs to the shared execution
+        assertEquals(2, counter.get());
+        verify(rejectCallback, times(2)).accept(any(IllegalStateException.class));
+    }
+
+    @Test
+    public void testCancelledLeader() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        CallCoalescer coalescer = new CallCoalescer();
+        PromiseTemplate template = PromiseTemplate.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                if (counter.incrementAndGet() == 1) {
+                    started.countDown();
+                    Thread.sleep(10000);
+                }
+                resolve("value" + params[0]);
+            }
+        }.coalesced(coalescer));
+
+        Promise leader = template.start(1);
+        started.await();
+        Result<Object[]> result = mockResultCallback();
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise follower1 = template.start(1).resolve(result).reject(rejectCallback);
+        Promise follower2 = template.start(1).resolve(result).reject(rejectCallback);
+
+        // the first follower takes over, the second one still shares its execution
+        assertTrue(leader.cancel(true));
+        follower1.waitForCompletion();
+        follower2.waitForCompletion();
+
+        verify(result, times(2)).accept(new Object[]{"value1"});
+        verify(rejectCallback, never()).accept(any(Throwable.class));
+        assertEquals(2, counter.get());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+}
@@ -0,0 +1,185 @@
+package com.mecasa.jspromise;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class CallJournalTest {
+
+    public static class EchoCall extends AsyncCall<String> implements Serializable {
+        static final AtomicInteger sCalls = new AtomicInteger();
+        // simulates a Call still in flight when the process dies
+        static volatile boolean sHang;
+        static volatile Thread sThread;
+
+        private final String _prefix;
+
+        public EchoCall(String prefix) {
+            _prefix = prefix;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            sCalls.incrementAndGet();
+            sThread = Thread.currentThread();
+            if (!sHang) {
+                resolve(_prefix + params[0]);
+            }
+        }
+    }
+
+    private File _file;
+
+    @Before
+    public void setUp() throws Exception {
+        _file = File.createTempFile("calls", ".journal");
+        EchoCall.sCalls.set(0);
+        EchoCall.sHang = false;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _file.delete();
+    }
+
+    @Test
+    public void testResolvedCallsNotRecovered() throws Exception {
+        CallJournal journal = new CallJournal(_file);
+        PromiseTemplate template = PromiseTemplate.when(new EchoCall("a").journal(journal));
+        for (int i = 0; i < 10; i++) {
+            template.start("x" + i).waitForCompletion();
+        }
+        journal.close();
+
+        journal = new CallJournal(_file);
+        assertEquals(0, journal.recover().size());
+        journal.close();
+        assertEquals(10, EchoCall.sCalls.get());
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        CallJournal journal = new CallJournal(_file);
+        EchoCall.sHang = true;
+        PromiseTemplate.when(new EchoCall("a").journal(journal)).start("x");
+        // only called once the dispatch is on the disk
+        while (EchoCall.sCalls.get() == 0) {
+            Thread.sleep(1);
+        }
+        journal.close();
+
+        // a record torn by the crash
+        FileOutputStream out = new FileOutputStream(_file, true);
+        out.write(new byte[]{0, 0, 1});
+        out.close();
+
+        EchoCall.sHang = false;
+        journal = new CallJournal(_file);
+        List<Promise> promises = journal.recover();
+        assertEquals(1, promises.size());
+        assertEquals(0, journal.recover().size());
+
+        Result<Object[]> resultCallback = mockResultCallback();
+        promises.get(0).resolve(resultCallback).start().waitForCompletion();
+        verify(resultCallback).accept(new Object[]{"ax"});
+        journal.close();
+
+        journal = new CallJournal(_file);
+        assertEquals(0, journal.recover().size());
+        journal.close();
+    }
+
+    @Test
+    public void testCloseWhileDispatching() throws Exception {
+        CallJournal journal = new CallJournal(_file);
+        final PromiseTemplate template = PromiseTemplate.when(new EchoCall("a").journal(journal));
+        final List<Promise> promises = Collections.synchronizedList(new ArrayList<Promise>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 500; j++) {
+                        promises.add(template.start("x" + j));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(1);
+        journal.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // each Call is either performed or rejected, none waits for a record never written
+        assertTrue(Promise.awaitAll(promises, 10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPerformedOffWriterThread() throws Exception {
+        CallJournal journal = new CallJournal(_file);
+        Promise promise = PromiseTemplate.when(new EchoCall("a").journal(journal)).start("x");
+        promise.waitForCompletion();
+        journal.close();
+
+        assertEquals(1, EchoCall.sCalls.get());
+        assertTrue(!EchoCall.sThread.getName().startsWith("CallJournal"));
+    }
+
+    @Test
+    public void testCompactWhileOpen() throws Exception {
+        CallJournal journal = new CallJournal(_file, 10);
+        EchoCall.sHang = true;
+        PromiseTemplate.when(new EchoCall("a").journal(journal)).start("x");
+        // only called once the dispatch is on the disk
+        while (EchoCall.sCalls.get() == 0) {
+            Thread.sleep(1);
+        }
+        long recordLength = _file.length();
+        EchoCall.sHang = false;
+
+        PromiseTemplate template = PromiseTemplate.when(new EchoCall("a").journal(journal));
+        for (int i = 0; i < 100; i++) {
+            template.start("x" + i).waitForCompletion();
+        }
+        journal.close();
+        // at most the Calls completed since the last compaction are left besides the hanging one
+        assertTrue(_file.length() < 25 * recordLength);
+
+        journal = new CallJournal(_file);
+        assertEquals(1, journal.recover().size());
+        journal.close();
+    }
+
+    @Test
+    public void testNotSerializable() throws Exception {
+        CallJournal journal = new CallJournal(_file);
+        try {
+            new AsyncCall<String>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    resolve("Foo");
+                }
+            }.journal(journal);
+            fail("journaled calls have to be serializable");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        journal.close();
+    }
+}
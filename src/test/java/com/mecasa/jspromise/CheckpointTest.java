@@ -0,0 +1,112 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CheckpointTest {
+
+    private static class IncrementCall extends TestCalls.CountingCall {
+        IncrementCall(AtomicInteger performed, AtomicInteger failures) {
+            super(performed, failures);
+        }
+
+        @Override
+        protected Object getValue(Object... params) {
+            return (Integer) params[0] + 1;
+        }
+    }
+
+    private final AtomicInteger _count1 = new AtomicInteger();
+    private final AtomicInteger _count2 = new AtomicInteger();
+    private final AtomicInteger _count3 = new AtomicInteger();
+    private final AtomicInteger _failures = new AtomicInteger(1);
+
+    private PromiseTemplate createChain() {
+        return PromiseTemplate.when(new IncrementCall(_count1, new AtomicInteger()))
+                .then(new IncrementCall(_count2, new AtomicInteger()))
+                .then(new IncrementCall(_count3, _failures));
+    }
+
+    private void verifyResume(CheckpointStore store) throws Exception {
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        createChain().create(0).checkpoint(store, "chain").reject(rejectCallback).start().waitForCompletion();
+        verify(rejectCallback).accept(any(IllegalStateException.class));
+        assertTrue(store.load("chain") != null);
+        assertEquals(2, store.load("chain").getCompletedStages());
+
+        // a new chain continues with the failed stage
+        Result<Object[]> resultCallback = mockResultCallback();
+        createChain().create(0).checkpoint(store, "chain").resolve(resultCallback).start().waitForCompletion();
+        verify(resultCallback).accept(new Object[]{3});
+
+        assertEquals(1, _count1.get());
+        assertEquals(1, _count2.get());
+        assertEquals(2, _count3.get());
+        // removed once resolved
+        assertTrue(store.load("chain") == null);
+    }
+
+    @Test
+    public void testMemoryStore() throws Exception {
+        verifyResume(new MemoryCheckpointStore());
+    }
+
+    @Test
+    public void testFileStore() throws Exception {
+        File directory = File.createTempFile("checkpoints", "");
+        assertTrue(directory.delete());
+        FileCheckpointStore store = new FileCheckpointStore(directory);
+
+        store.save("id", new Checkpoint(1, new Object[]{"a"}));
+        store.save("id", new Checkpoint(2, new Object[]{"b", 1}));
+        Checkpoint checkpoint = store.load("id");
+        assertEquals(2, checkpoint.getCompletedStages());
+        assertEquals("b", checkpoint.getValues()[0]);
+        assertEquals(1, checkpoint.getValues()[1]);
+        store.remove("id");
+
+        verifyResume(store);
+        assertEquals(0, directory.list().length);
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void testFileStoreBackup() throws Exception {
+        File directory = File.createTempFile("checkpoints", "");
+        assertTrue(directory.delete());
+        FileCheckpointStore store = new FileCheckpointStore(directory);
+        store.save("id", new Checkpoint(1, new Object[]{"a"}));
+
+        // died while replacing the checkpoint on a platform not renaming over existing files
+        File file = new File(directory, "id.checkpoint");
+        assertTrue(file.renameTo(new File(directory, "id.checkpoint.bak")));
+        assertEquals(1, store.load("id").getCompletedStages());
+
+        store.save("id", new Checkpoint(2, new Object[]{"b"}));
+        assertEquals(2, store.load("id").getCompletedStages());
+        store.remove("id");
+        assertTrue(store.load("id") == null);
+        assertEquals(0, directory.list().length);
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void testMismatchingCheckpoint() throws Exception {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        store.save("chain", new Checkpoint(5, new Object[]{1}));
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        createChain().create(0).checkpoint(store, "chain").reject(rejectCallback).start();
+        verify(rejectCallback).accept(any(IllegalStateException.class));
+        assertEquals(0, _count1.get());
+    }
+}
@@ -0,0 +1,117 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CircuitBreakerTest {
+
+    private final AtomicInteger _performed = new AtomicInteger();
+    private final AtomicBoolean _failing = new AtomicBoolean(true);
+
+    private Promise callService(CircuitBreaker breaker, Result<Throwable> rejectCallback) {
+        return Promise.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                _performed.incrementAndGet();
+                if (_failing.get()) {
+                    reject(new IllegalStateException());
+                } else {
+                    resolve("ok");
+                }
+            }
+        }.circuitBreaker(breaker).retries(2)).reject(rejectCallback);
+    }
+
+    @Test
+    public void testOpenAndRecover() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 4, 50, 100, TimeUnit.MILLISECONDS);
+
+        // 3 attempts, all failing: not enough calls recorded yet
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        callService(breaker, rejectCallback);
+        verify(rejectCallback).accept(any(IllegalStateException.class));
+        assertEquals(3, _performed.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // the 4th attempt opens the circuit, the retries are rejected without being performed
+        rejectCallback = mockRejectCallback();
+        callService(breaker, rejectCallback);
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        assertEquals(4, _performed.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        rejectCallback = mockRejectCallback();
+        callService(breaker, rejectCallback);
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        assertEquals(4, _performed.get());
+
+        // after the open duration a probe call is let through and closes the circuit
+        Thread.sleep(120);
+        _failing.set(false);
+        rejectCallback = mockRejectCallback();
+        callService(breaker, rejectCallback);
+        verify(rejectCallback, never()).accept(any(Throwable.class));
+        assertEquals(5, _performed.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testFailedProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 2, 50, 50, TimeUnit.MILLISECONDS).setMinimumCalls(1);
+
+        callService(breaker, mockRejectCallback());
+        assertEquals(1, _performed.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(70);
+        callService(breaker, mockRejectCallback());
+        assertEquals(2, _performed.get());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testProbeNotPerformed() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 2, 50, 50, TimeUnit.MILLISECONDS).setMinimumCalls(1);
+        callService(breaker, mockRejectCallback());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(70);
+
+        // the probe is permitted, but cancelled while waiting for a thread
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Promise probe = Promise.when(false, new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                _performed.incrementAndGet();
+                resolve("ok");
+            }
+        }.circuitBreaker(breaker)).setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        }).start();
+        probe.cancel(false);
+        tasks.get(0).run();
+        assertEquals(1, _performed.get());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // its permit is passed on to the next probe
+        _failing.set(false);
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        callService(breaker, rejectCallback);
+        verify(rejectCallback, never()).accept(any(Throwable.class));
+        assertEquals(2, _performed.get());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,185 @@
+package com.mecasa.jspromise;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests for adding handlers and stages to running Promises from several threads.
+ */
+public class PromiseConcurrencyTest {
+    private static final int THREADS = 4;
+
+    private ExecutorService _executor;
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _executor.shutdown();
+    }
+
+    private void runConcurrently(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    runnable.run();
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testLateHandlersCalledExactlyOnce() throws Exception {
+        final int promiseCount = 500;
+        final int handlersPerThread = 10;
+
+        for (int i = 0; i < promiseCount; i++) {
+            final AtomicInteger resolved = new AtomicInteger();
+            final AtomicInteger fulfilled = new AtomicInteger();
+            final Promise promise = Promise.when(false, new BlockingCall<Integer>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    resolve(1);
+                }
+            }).setExecutor(_executor).start();
+
+            // handlers race with the completion of the promise
+            runConcurrently(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < handlersPerThread; j++) {
+                        promise.resolve(new Result<Object[]>() {
+                            public void accept(Object[] objects) {
+                                resolved.incrementAndGet();
+                            }
+                        }).fulfilled(new Runnable() {
+                            public void run() {
+                                fulfilled.incrementAndGet();
+                            }
+                        });
+                    }
+                }
+            });
+            promise.waitForCompletion();
+
+            assertEquals(THREADS * handlersPerThread, resolved.get());
+            assertEquals(THREADS * handlersPerThread, fulfilled.get());
+        }
+    }
+
+    @Test
+    public void testConcurrentStages() throws Exception {
+        final int stagesPerThread = 200;
+        final int stageCount = THREADS * stagesPerThread;
+        final AtomicInteger[] performed = new AtomicInteger[stageCount];
+        for (int i = 0; i < performed.length; i++) {
+            performed[i] = new AtomicInteger();
+        }
+        final AtomicInteger sequence = new AtomicInteger();
+        final AtomicInteger nextStage = new AtomicInteger();
+        final CountDownLatch allPerformed = new CountDownLatch(stageCount);
+        // the completions reported, identified by the sequence number of the last stage performed before
+        final Set<Object> completions = new HashSet<Object>();
+        final AtomicInteger resolved = new AtomicInteger();
+
+        final Promise promise = Promise.when(false, new AsyncCall<Integer>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(0);
+            }
+        }).setExecutor(_executor).resolve(new Result<Object[]>() {
+            public void accept(Object[] objects) {
+                synchronized (completions) {
+                    resolved.incrementAndGet();
+                    completions.add(objects[0]);
+                }
+            }
+        }).start();
+
+        // stages are added while the previous ones are processed or the promise is already resolved
+        runConcurrently(new Runnable() {
+            public void run() {
+                for (int i = 0; i < stagesPerThread; i++) {
+                    final int stage = nextStage.getAndIncrement();
+                    promise.then(new BlockingCall<Integer>() {
+                        @Override
+                        protected void call(Object... params) throws Throwable {
+                            performed[stage].incrementAndGet();
+                            resolve(sequence.incrementAndGet());
+                            allPerformed.countDown();
+                        }
+                    });
+                }
+            }
+        });
+
+        assertTrue(allPerformed.await(5, TimeUnit.SECONDS));
+        // all stages were started, so the outcome seen now is the final one
+        promise.waitForCompletion();
+
+        for (AtomicInteger count : performed) {
+            assertEquals(1, count.get());
+        }
+        synchronized (completions) {
+            // each completion is reported once, the last one in any case
+            assertEquals(completions.size(), resolved.get());
+            assertTrue(completions.contains(stageCount));
+        }
+    }
+
+    @Test
+    public void testCancelWhileResolving() throws Exception {
+        for (int i = 0; i < 100000; i++) {
+            final AtomicInteger resolved = new AtomicInteger();
+            final AtomicInteger rejected = new AtomicInteger();
+            Promise promise = Promise.when(false, new BlockingCall<Integer>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    resolve(1);
+                }
+            }).setExecutor(_executor).resolve(new Result<Object[]>() {
+                public void accept(Object[] objects) {
+                    resolved.incrementAndGet();
+                }
+            }).reject(new Result<Throwable>() {
+                public void accept(Throwable throwable) {
+                    rejected.incrementAndGet();
+                }
+            }).start();
+
+            // races with the completion of the only Call
+            boolean cancelled = promise.cancel(false);
+            promise.waitForCompletion();
+
+            assertEquals(cancelled, promise.isCancelled());
+            assertEquals(cancelled ? 0 : 1, resolved.get());
+            assertEquals(cancelled ? 1 : 0, rejected.get());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.mecasa.jspromise;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.fail;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PromiseScopeTest {
+
+    private static class SleepingCall extends BlockingCall<String> {
+        private final long _millis;
+        private final AtomicInteger _running;
+        private final AtomicInteger _interrupted;
+
+        SleepingCall(long millis, AtomicInteger running, AtomicInteger interrupted) {
+            _millis = millis;
+            _running = running;
+            _interrupted = interrupted;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            _running.incrementAndGet();
+            try {
+                Thread.sleep(_millis);
+                resolve("slept");
+            } catch (InterruptedException e) {
+                _interrupted.incrementAndGet();
+                throw e;
+            } finally {
+                _running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger interrupted = new AtomicInteger();
+        PromiseScope scope = new PromiseScope();
+        try {
+            for (int i = 0; i < 5; i++) {
+                scope.when(new SleepingCall(20, running, interrupted))
+                        .then(new SleepingCall(20, running, interrupted));
+            }
+            scope.join();
+            assertEquals(0, scope.getPendingCount());
+        } finally {
+            scope.close();
+        }
+        assertEquals(0, interrupted.get());
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final RuntimeException error = new RuntimeException("failed");
+
+        PromiseScope scope = new PromiseScope();
+        long start = System.nanoTime();
+        try {
+            Promise slow = scope.when(new SleepingCall(10000, running, interrupted));
+            Promise next = scope.when(new SleepingCall(10000, running, interrupted));
+            scope.when(new BlockingCall<String>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    Thread.sleep(50);
+                    throw error;
+                }
+            });
+
+            try {
+                scope.join();
+                fail("failure expected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() == error);
+            }
+            assertTrue(slow.isCancelled());
+            assertTrue(next.isCancelled());
+        } finally {
+            scope.close();
+        }
+
+        // no task outlives the scope
+        assertEquals(0, running.get());
+        assertEquals(2, interrupted.get());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+
+        PromiseScope scope = new PromiseScope();
+        // a single thread, so the second Call is still waiting when the scope is closed
+        Promise promise = scope.add(Promise.when(false, new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                started.countDown();
+                Thread.sleep(10000);
+                resolve("slept");
+            }
+        }, new SleepingCall(10000, running, interrupted)).setExecutor(Executors.newSingleThreadExecutor())).start();
+
+        started.await();
+        scope.close();
+
+        assertTrue(promise.isCancelled());
+        assertTrue(scope.getFailure() instanceof CancellationException);
+        assertEquals(0, scope.getPendingCount());
+        // the waiting Call was dropped instead of being performed
+        assertEquals(0, interrupted.get());
+
+        try {
+            scope.when(new SleepingCall(0, running, interrupted));
+            fail("closed scope must not accept promises");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -6,9 +6,16 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
 import static junit.framework.Assert.fail;
 import static junit.framework.TestCase.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -596,16 +603,6 @@ public class PromiseTest {
         verify(result).accept(any(Object[].class));
     }
 
-    @SuppressWarnings("unchecked")
-    private Result<Object[]> mockResultCallback() {
-        return (Result<Object[]>) mock(Result.class);
-    }
-
-    @SuppressWarnings("unchecked")
-    private Result<Throwable> mockRejectCallback() {
-        return (Result<Throwable>) mock(Result.class);
-    }
-
     @Test
     public void testDelayedStart() throws Exception {
         Runnable runnable = mock(Runnable.class);
@@ -624,4 +621,402 @@ public class PromiseTest {
 
         verify(runnable).run();
     }
+
+    @Test
+    public void testTemplate() throws Exception {
+        PromiseTemplate template = PromiseTemplate.when(new AsyncCall<Integer>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(((Integer) params[0]) * 2);
+            }
+        }).then(new BlockingCall<Integer>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(((Integer) params[0]) + 1);
+            }
+        });
+
+        Result<Object[]> result1 = mockResultCallback();
+        Result<Object[]> result2 = mockResultCallback();
+        Promise promise1 = template.start(10).resolve(result1);
+        Promise promise2 = template.start(20).resolve(result2);
+        promise1.waitForCompletion();
+        promise2.waitForCompletion();
+
+        ArgumentCaptor<Object[]> captor = ArgumentCaptor.forClass(Object[].class);
+        verify(result1).accept(captor.capture());
+        assertEquals(21, captor.getValue()[0]);
+        verify(result2).accept(captor.capture());
+        assertEquals(41, captor.getValue()[0]);
+        assertEquals(2, template.getStageCount());
+    }
+
+    @Test
+    public void testTemplateRetries() throws Exception {
+        final AtomicInteger tries = new AtomicInteger();
+        PromiseTemplate template = PromiseTemplate.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                if (tries.incrementAndGet() % 2 == 1) {
+                    reject(new Exception());
+                } else {
+                    resolve("Foo");
+                }
+            }
+        }.retries(1));
+
+        // each instance gets its own retry budget
+        for (int i = 0; i < 3; i++) {
+            Result<Throwable> rejectCallback = mockRejectCallback();
+            template.create().reject(rejectCallback).start().waitForCompletion();
+            verify(rejectCallback, never()).accept(any(Throwable.class));
+        }
+        assertEquals(6, tries.get());
+
+        try {
+            template.then();
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testCallGraph() throws Exception {
+        final long ct1 = System.currentTimeMillis();
+        final long[] fastPathCompleted = new long[1];
+
+        BlockingCall<String> slowCall = new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                Thread.sleep(200);
+                resolve("slow");
+            }
+        };
+        BlockingCall<String> fastCall = new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve("fast");
+            }
+        };
+        AsyncCall<String> dependingOnFastCall = new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                fastPathCompleted[0] = System.currentTimeMillis();
+                resolve(params[0] + "!");
+            }
+        };
+        AsyncCall<String> joinCall = new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve(params[0] + "+" + params[1]);
+            }
+        };
+
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.when(new CallGraph()
+                .add(slowCall)
+                .add(fastCall)
+                .add(dependingOnFastCall, fastCall)
+                .add(joinCall, slowCall, dependingOnFastCall))
+                .resolve(resultCallback)
+                .waitForCompletion();
+
+        // the fast path must not wait for the slow call
+        assertTrue(fastPathCompleted[0] - ct1 < 100);
+
+        ArgumentCaptor<Object[]> captor = ArgumentCaptor.forClass(Object[].class);
+        verify(resultCallback).accept(captor.capture());
+        Object[] values = captor.getValue();
+        assertEquals(4, values.length);
+        assertEquals("slow", values[0]);
+        assertEquals("fast!", values[2]);
+        assertEquals("slow+fast!", values[3]);
+    }
+
+    @Test
+    public void testCallGraphParameters() throws Exception {
+        Call<String> call = BlockingCall.wrap(mock(Runnable.class));
+        try {
+            new CallGraph().add(call, BlockingCall.wrap(mock(Runnable.class)));
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            new CallGraph().add(call).add(call);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            Promise.when(new CallGraph());
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void testPriorityExecutor() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final StringBuffer order = new StringBuffer();
+
+        // occupy the only thread, so all following calls have to wait
+        Promise blocking = Promise.when(false, BlockingCall.wrap(new Runnable() {
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        })).setExecutor(executor).start();
+
+        Promise[] promises = new Promise[3];
+        for (int i = 0; i < promises.length; i++) {
+            final int priority = i;
+            promises[i] = Promise.when(false, new BlockingCall<Integer>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    order.append(priority);
+                    resolve(priority);
+                }
+            }).setExecutor(executor).setPriority(priority).start();
+        }
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise expired = Promise.when(false, BlockingCall.wrap(new Runnable() {
+            public void run() {
+                order.append("expired");
+            }
+        })).setExecutor(executor).setPriority(10).setDeadline(10, TimeUnit.MILLISECONDS).reject(rejectCallback).start();
+
+        Thread.sleep(20);
+        blocker.countDown();
+        for (Promise promise : promises) {
+            promise.waitForCompletion();
+        }
+        expired.waitForCompletion();
+        blocking.waitForCompletion();
+
+        assertEquals("210", order.toString());
+        verify(rejectCallback).accept(any(TimeoutException.class));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testMultipleHandlers() throws Exception {
+        Result<Object[]> result1 = mockResultCallback();
+        Result<Object[]> result2 = mockResultCallback();
+        Runnable fulfilled1 = mock(Runnable.class);
+        Runnable fulfilled2 = mock(Runnable.class);
+
+        Promise promise = Promise.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                Thread.sleep(50);
+                resolve("Foo");
+            }
+        }).resolve(result1).resolve(result2).fulfilled(fulfilled1);
+        promise.waitForCompletion();
+        // added after the completion
+        promise.fulfilled(fulfilled2);
+
+        verify(result1).accept(new Object[]{"Foo"});
+        verify(result2).accept(new Object[]{"Foo"});
+        verify(fulfilled1).run();
+        verify(fulfilled2).run();
+    }
+
+    @Test
+    public void testCallbackExecutor() throws Exception {
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        final Thread[] handlerThread = new Thread[1];
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        final Thread[] callThread = new Thread[1];
+        Promise.when(false, new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                callThread[0] = Thread.currentThread();
+                resolve("Foo");
+            }
+        }).setCallbackExecutor(callbackExecutor).resolve(new Result<Object[]>() {
+            public void accept(Object[] objects) {
+                handlerThread[0] = Thread.currentThread();
+                handled.countDown();
+            }
+        }).start().waitForCompletion();
+
+        assertTrue(handled.await(1, TimeUnit.SECONDS));
+        assertTrue(handlerThread[0] != callThread[0]);
+        callbackExecutor.shutdown();
+    }
+
+    @Test
+    public void testAll() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        Promise[] promises = new Promise[1000];
+        for (int i = 0; i < promises.length; i++) {
+            final int value = i;
+            promises[i] = Promise.when(new AsyncCall<Integer>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            resolve(value);
+                        }
+                    });
+                }
+            });
+        }
+
+        final Object[][] result = new Object[1][];
+        Promise.all(promises).resolve(new Result<Object[]>() {
+            public void accept(Object[] objects) {
+                result[0] = objects;
+            }
+        }).waitForCompletion();
+
+        assertEquals(promises.length, result[0].length);
+        for (int i = 0; i < promises.length; i++) {
+            assertEquals(i, ((Object[]) result[0][i])[0]);
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAllRejected() throws Exception {
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        final RuntimeException error = new RuntimeException("failed");
+
+        Promise.all(Promise.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                Thread.sleep(50);
+                resolve("Foo");
+            }
+        }), Promise.when(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                throw error;
+            }
+        })).reject(rejectCallback).waitForCompletion();
+
+        verify(rejectCallback).accept(error);
+    }
+
+    @Test
+    public void testAllEmpty() throws Exception {
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.all().resolve(resultCallback);
+        verify(resultCallback).accept(new Object[0]);
+    }
+
+    @Test
+    public void testAwaitAllRemovesHandlers() throws Exception {
+        Promise promise = Promise.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            assertTrue(!Promise.awaitAll(Collections.singletonList(promise), 1, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(0, promise.getListenerCount());
+    }
+
+    @Test
+    public void testAwaitAll() throws Exception {
+        final AtomicInteger completed = new AtomicInteger();
+        List<Promise> promises = new ArrayList<Promise>();
+        for (int i = 0; i < 100; i++) {
+            promises.add(Promise.when(new BlockingCall<String>() {
+                @Override
+                protected void call(Object... params) throws Throwable {
+                    Thread.sleep(10);
+                    completed.incrementAndGet();
+                    resolve("Foo");
+                }
+            }));
+        }
+        assertTrue(Promise.awaitAll(promises, 10, TimeUnit.SECONDS));
+        assertEquals(100, completed.get());
+
+        // never resolved
+        promises.add(Promise.when(new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+            }
+        }));
+        long start = System.nanoTime();
+        assertTrue(!Promise.awaitAll(promises, 100, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testMap() throws Exception {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 1001; i++) {
+            items.add(i);
+        }
+
+        final Object[][] result = new Object[1][];
+        Promise.map(items, new Mapper<Integer, String>() {
+            public String map(Integer item) throws Throwable {
+                return "#" + item;
+            }
+        }, 4).resolve(new Result<Object[]>() {
+            public void accept(Object[] objects) {
+                result[0] = objects;
+            }
+        }).waitForCompletion();
+
+        List<?> mapped = (List<?>) result[0][0];
+        assertEquals(items.size(), mapped.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals("#" + i, mapped.get(i));
+        }
+    }
+
+    @Test
+    public void testMapReduce() throws Exception {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 1; i <= 1000; i++) {
+            items.add(i);
+        }
+        Mapper<Integer, Long> square = new Mapper<Integer, Long>() {
+            public Long map(Integer item) throws Throwable {
+                return (long) item * item;
+            }
+        };
+        Combiner<Long> sum = new Combiner<Long>() {
+            public Long combine(Long result1, Long result2) {
+                return result1 + result2;
+            }
+        };
+
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.mapReduce(items, square, sum).resolve(resultCallback).waitForCompletion();
+        verify(resultCallback).accept(new Object[]{333833500L});
+
+        Result<Object[]> emptyCallback = mockResultCallback();
+        Promise.mapReduce(Collections.<Integer>emptyList(), square, sum).resolve(emptyCallback).waitForCompletion();
+        verify(emptyCallback).accept(new Object[]{null});
+    }
+
+    @Test
+    public void testMapRejected() throws Exception {
+        final RuntimeException error = new RuntimeException("failed");
+        Result<Throwable> rejectCallback = mockRejectCallback();
+
+        Promise.map(Arrays.asList(1, 2, 3, 4), new Mapper<Integer, Integer>() {
+            public Integer map(Integer item) throws Throwable {
+                if (item == 3) {
+                    throw error;
+                }
+                return item;
+            }
+        }, 2).reject(rejectCallback).waitForCompletion();
+
+        verify(rejectCallback).accept(error);
+    }
 }
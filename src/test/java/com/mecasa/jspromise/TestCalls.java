@@ -0,0 +1,58 @@
+package com.mecasa.jspromise;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Calls and handlers shared by the tests.
+ */
+final class TestCalls {
+
+    private TestCalls() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Result<Object[]> mockResultCallback() {
+        return (Result<Object[]>) mock(Result.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Result<Throwable> mockRejectCallback() {
+        return (Result<Throwable>) mock(Result.class);
+    }
+
+    /**
+     * counts its attempts and fails the first ones, resolving synchronously otherwise.
+     */
+    static class CountingCall extends AsyncCall<Object> {
+        final AtomicInteger performed;
+        private final AtomicInteger _failures;
+
+        CountingCall(int failures) {
+            this(new AtomicInteger(), new AtomicInteger(failures));
+        }
+
+        /**
+         * @param performed the counter of attempts, shared by the copies of a template.
+         * @param failures  the number of attempts still to fail, shared by the copies of a template.
+         */
+        CountingCall(AtomicInteger performed, AtomicInteger failures) {
+            this.performed = performed;
+            _failures = failures;
+        }
+
+        @Override
+        protected void call(Object... params) throws Throwable {
+            performed.incrementAndGet();
+            if (_failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("failed");
+            }
+            resolve(getValue(params));
+        }
+
+        protected Object getValue(Object... params) {
+            return "ok";
+        }
+    }
+}
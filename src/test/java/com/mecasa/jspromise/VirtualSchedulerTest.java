@@ -0,0 +1,196 @@
+package com.mecasa.jspromise;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.mecasa.jspromise.TestCalls.mockRejectCallback;
+import static com.mecasa.jspromise.TestCalls.mockResultCallback;
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class VirtualSchedulerTest {
+
+    private VirtualScheduler _scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        _scheduler = new VirtualScheduler();
+        Promise.setScheduler(_scheduler);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Promise.setScheduler(Scheduler.SYSTEM);
+    }
+
+    @Test
+    public void testRetriesWithDelay() throws Exception {
+        TestCalls.CountingCall call = new TestCalls.CountingCall(100);
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.when(call.retriesWithDelay(100, 1, TimeUnit.HOURS)).resolve(resultCallback);
+        assertEquals(1, call.performed.get());
+
+        // nothing happens before the delay
+        _scheduler.advance(59, TimeUnit.MINUTES);
+        assertEquals(1, call.performed.get());
+
+        _scheduler.runAll();
+        verify(resultCallback).accept(new Object[]{"ok"});
+        assertEquals(101, call.performed.get());
+        assertEquals(TimeUnit.HOURS.toNanos(100), _scheduler.nanoTime());
+    }
+
+    @Test
+    public void testRetryAfterCancel() throws Exception {
+        TestCalls.CountingCall call = new TestCalls.CountingCall(100);
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise promise = Promise.when(call.retriesWithDelay(100, 1, TimeUnit.HOURS)).reject(rejectCallback);
+        assertEquals(1, call.performed.get());
+
+        promise.cancel(false);
+        _scheduler.runAll();
+        assertEquals(1, call.performed.get());
+        verify(rejectCallback).accept(any(CancellationException.class));
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        final StringBuilder order = new StringBuilder();
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.when(false, new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                order.append("1");
+                resolve("Foo");
+            }
+        }).then(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                order.append("2");
+                resolve(params[0] + "Bar");
+            }
+        }).setExecutor(_scheduler).resolve(resultCallback).start();
+
+        // queued until the scheduler runs
+        assertEquals("", order.toString());
+        assertEquals(2, _scheduler.runPending());
+        assertEquals("12", order.toString());
+        verify(resultCallback).accept(new Object[]{"FooBar"});
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(false, new AsyncCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                Call.schedule(new Runnable() {
+                    public void run() {
+                        resolve("late");
+                    }
+                }, 2, TimeUnit.SECONDS);
+            }
+        }).then(new BlockingCall<String>() {
+            @Override
+            protected void call(Object... params) throws Throwable {
+                resolve("never");
+            }
+        }).setExecutor(_scheduler).setDeadline(1, TimeUnit.SECONDS).reject(rejectCallback).start();
+
+        _scheduler.advance(1, TimeUnit.SECONDS);
+        verify(rejectCallback, never()).accept(any(Throwable.class));
+        _scheduler.advance(1, TimeUnit.SECONDS);
+        verify(rejectCallback).accept(any(TimeoutException.class));
+    }
+
+    @Test
+    public void testCallDeadlinePerExecution() throws Exception {
+        PromiseTemplate template = PromiseTemplate.when(new TestCalls.CountingCall(0).deadline(1, TimeUnit.SECONDS));
+        _scheduler.advance(2, TimeUnit.SECONDS);
+
+        // measured from the start of each Promise, not from creating the template
+        Result<Object[]> resultCallback = mockResultCallback();
+        template.create().resolve(resultCallback).start();
+        verify(resultCallback).accept(new Object[]{"ok"});
+    }
+
+    @Test
+    public void testCircuitBreakerOpenDuration() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 2, 50, 30, TimeUnit.SECONDS);
+        Promise.when(new TestCalls.CountingCall(2).circuitBreaker(breaker).retries(1));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(new TestCalls.CountingCall(0).circuitBreaker(breaker)).reject(rejectCallback);
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+
+        _scheduler.advance(30, TimeUnit.SECONDS);
+        Result<Object[]> resultCallback = mockResultCallback();
+        Promise.when(new TestCalls.CountingCall(0).circuitBreaker(breaker)).resolve(resultCallback);
+        verify(resultCallback).accept(new Object[]{"ok"});
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testNoRetriesWhileOpen() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 1, 100, 30, TimeUnit.SECONDS);
+        TestCalls.CountingCall call = new TestCalls.CountingCall(10);
+        Result<Throwable> rejectCallback = mockRejectCallback();
+        Promise.when(call.circuitBreaker(breaker).retriesWithDelay(5, 1, TimeUnit.SECONDS)).reject(rejectCallback);
+
+        // the first failure opens the circuit, no retry is scheduled
+        verify(rejectCallback).accept(any(RejectedExecutionException.class));
+        assertEquals(1, call.performed.get());
+        assertEquals(0, _scheduler.getQueuedCount());
+    }
+
+    private static class PendingCall extends AsyncCall<String> {
+        @Override
+        protected void call(Object... params) throws Throwable {
+            // completed by the test
+        }
+    }
+
+    @Test
+    public void testOutcomeOfEarlierState() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("service", 1, 100, 30, TimeUnit.SECONDS);
+        PendingCall slow = new PendingCall();
+        Promise.when(slow.circuitBreaker(breaker));
+        Promise.when(new TestCalls.CountingCall(1).circuitBreaker(breaker));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        _scheduler.advance(30, TimeUnit.SECONDS);
+        PendingCall probe = new PendingCall();
+        Promise.when(probe.circuitBreaker(breaker));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // permitted while CLOSED, it is no probe
+        slow.resolve("late");
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        probe.resolve("ok");
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        CallCache cache = new CallCache(1, TimeUnit.MINUTES, 10);
+        TestCalls.CountingCall call = new TestCalls.CountingCall(0);
+        Promise.when(call.cached(cache));
+        Promise.when(call.copy().cached(cache));
+        assertEquals(1, cache.getHitCount());
+
+        _scheduler.advance(1, TimeUnit.MINUTES);
+        Promise.when(call.copy().cached(cache));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, call.performed.get());
+        assertTrue(_scheduler.getQueuedCount() == 0);
+    }
+}